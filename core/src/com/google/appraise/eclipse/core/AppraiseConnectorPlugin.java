@@ -10,11 +10,18 @@
  *******************************************************************************/
 package com.google.appraise.eclipse.core;
 
+import com.google.appraise.eclipse.core.client.git.AppraiseGitReviewClient;
+
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Plugin;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.jgit.lib.Repository;
 import org.osgi.framework.BundleContext;
 
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * The Appraise plugin bundle.
  */
@@ -49,8 +56,29 @@ public class AppraiseConnectorPlugin extends Plugin {
    */
   public static final String QUERY_REVIEW_COMMIT_PREFIX = PLUGIN_ID + ".reviewcommitprefix";
 
+  /**
+   * Connector query attribute for the most reviews to show, newest first.
+   */
+  public static final String QUERY_LIMIT = PLUGIN_ID + ".limit";
+
+  /**
+   * Git config key for how many seconds apart the notes are synced in the
+   * background. 0 or less turns the background sync off.
+   */
+  public static final String CONFIG_BACKGROUND_SYNC = "backgroundSyncSeconds";
+
+  /**
+   * The default background notes sync interval, in seconds.
+   */
+  private static final int DEFAULT_BACKGROUND_SYNC_SECONDS = 300;
+
   private static BundleContext context;
 
+  /**
+   * The background notes sync jobs, by git dir.
+   */
+  private final Map<File, NotesSyncJob> syncJobs = new HashMap<>();
+
   static BundleContext getContext() {
     return context;
   }
@@ -59,14 +87,57 @@ public class AppraiseConnectorPlugin extends Plugin {
   public void start(BundleContext bundleContext) throws Exception {
     super.start(bundleContext);
     plugin = this;
+    AppraisePluginUtils.startTrackingProjects();
   }
 
   @Override
   public void stop(BundleContext bundleContext) throws Exception {
+    AppraisePluginUtils.stopTrackingProjects();
+    synchronized (syncJobs) {
+      for (NotesSyncJob job : syncJobs.values()) {
+        job.stop();
+      }
+      syncJobs.clear();
+    }
     plugin = null;
     super.stop(bundleContext);
   }
 
+  /**
+   * Starts syncing the notes of the given repository in the background, if
+   * that is not already happening and the repository's appraise
+   * backgroundSyncSeconds git config does not turn it off.
+   */
+  public void startNotesSync(Repository repo) {
+    if (repo.getDirectory() == null) {
+      return;
+    }
+    synchronized (syncJobs) {
+      if (syncJobs.containsKey(repo.getDirectory())) {
+        return;
+      }
+      int intervalSeconds = repo.getConfig().getInt(AppraiseGitReviewClient.CONFIG_SECTION,
+          CONFIG_BACKGROUND_SYNC, DEFAULT_BACKGROUND_SYNC_SECONDS);
+      if (intervalSeconds <= 0) {
+        return;
+      }
+      NotesSyncJob job = new NotesSyncJob(repo, intervalSeconds * 1000L);
+      syncJobs.put(repo.getDirectory(), job);
+      job.schedule();
+    }
+  }
+
+  /**
+   * Returns whether the notes of the given repository are kept up to date by
+   * a background sync that has already run, so that reads need not sync.
+   */
+  public boolean isNotesSyncedInBackground(Repository repo) {
+    synchronized (syncJobs) {
+      NotesSyncJob job = syncJobs.get(repo.getDirectory());
+      return job != null && job.hasSynced();
+    }
+  }
+
   /**
    * Returns the shared instance.
    */
@@ -13,10 +13,13 @@ package com.google.appraise.eclipse.core;
 import com.google.appraise.eclipse.core.client.data.Review;
 import com.google.appraise.eclipse.core.client.data.ReviewComment;
 import com.google.appraise.eclipse.core.client.data.ReviewCommentResult;
+import com.google.appraise.eclipse.core.client.data.ReviewPage;
 import com.google.appraise.eclipse.core.client.data.ReviewResult;
 import com.google.appraise.eclipse.core.client.data.User;
 import com.google.appraise.eclipse.core.client.git.AppraiseGitReviewClient;
 import com.google.appraise.eclipse.core.client.git.GitClientException;
+import com.google.appraise.eclipse.core.client.git.ReviewHeader;
+import com.google.appraise.eclipse.core.client.git.ReviewSnapshot;
 
 import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.jgit.diff.DiffEntry;
@@ -28,8 +31,10 @@ import org.eclipse.mylyn.tasks.core.data.TaskData;
 import org.eclipse.swt.widgets.Display;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -59,6 +64,11 @@ public class AppraisePluginReviewClient {
 
   private User currentUser;
 
+  /**
+   * Whether the background notes sync has caught up, so reads need not sync.
+   */
+  private volatile boolean syncedInBackground;
+
   public AppraisePluginReviewClient(TaskRepository repository) throws GitClientException {
     this.gitRepo = AppraisePluginUtils.getGitRepoForRepository(repository);
     if (this.gitRepo == null) {
@@ -67,17 +77,61 @@ public class AppraisePluginReviewClient {
     }
     this.gitClient = new AppraiseGitReviewClient(this.gitRepo);
 
+    AppraiseConnectorPlugin plugin = AppraiseConnectorPlugin.getDefault();
+    if (plugin != null) {
+      plugin.startNotesSync(this.gitRepo);
+    }
+
     String currentUserName = gitRepo.getConfig().getString("user", null, "name");
     String currentUserEmail = gitRepo.getConfig().getString("user", null, "email");
     this.currentUser = new User(currentUserName, currentUserEmail);
   }
 
+  Repository getGitRepo() {
+    return gitRepo;
+  }
+
+  /**
+   * Gets the git client for a read. Once the notes are synced in the
+   * background, reads use the local notes refs as they are. Clients are
+   * long-lived, so the background sync may only have caught up since this
+   * one was created.
+   */
+  private AppraiseGitReviewClient forRead() {
+    if (!syncedInBackground) {
+      AppraiseConnectorPlugin plugin = AppraiseConnectorPlugin.getDefault();
+      if (plugin != null && plugin.isNotesSyncedInBackground(gitRepo)) {
+        syncedInBackground = true;
+        gitClient.setSyncOnRead(false);
+      }
+    }
+    return gitClient;
+  }
+
+  User getCurrentUser() {
+    return currentUser;
+  }
+
+  /**
+   * Syncs the review and comment notes right away, even if they were synced
+   * recently. Returns whether the sync succeeded.
+   */
+  public boolean refresh() {
+    try {
+      gitClient.syncCommentsAndReviews(true);
+      return true;
+    } catch (GitClientException e) {
+      AppraiseConnectorPlugin.logError("Error syncing reviews", e);
+      return false;
+    }
+  }
+
   /**
    * Retrieves all the reviews in the current project's repository.
    */
   public List<ReviewResult> listReviews() {
     try {
-      Map<String, Review> reviews = gitClient.listReviews();
+      Map<String, Review> reviews = forRead().listReviews();
       List<ReviewResult> results = new ArrayList<>();
       for (Map.Entry<String, Review> reviewEntry : reviews.entrySet()) {
         results.add(new ReviewResult(reviewEntry.getKey(), currentUser, reviewEntry.getValue()));
@@ -85,7 +139,7 @@ public class AppraisePluginReviewClient {
       Collections.sort(results, new Comparator<ReviewResult>() {
         @Override
         public int compare(ReviewResult first, ReviewResult second) {
-          return (int) (second.getReview().getTimestamp() - first.getReview().getTimestamp());
+          return Long.compare(second.getReview().getTimestamp(), first.getReview().getTimestamp());
         }
       });
       return results;
@@ -95,12 +149,28 @@ public class AppraisePluginReviewClient {
     }
   }
 
+  /**
+   * Retrieves one page of the reviews in the current project's repository,
+   * newest first. The reviews only carry the summary line of their
+   * description, which is all the task list needs. Returns null on error.
+   * @param limit The most reviews to return, or 0 or less for all of them.
+   * @param cursor Where the page starts, or null for the first page.
+   */
+  public ReviewPage<ReviewHeader> listReviews(int limit, String cursor) {
+    try {
+      return forRead().listReviews(limit, cursor);
+    } catch (GitClientException e) {
+      AppraiseConnectorPlugin.logError("Error loading reviews", e);
+      return null;
+    }
+  }
+
   /**
    * Retrieves a specific review from the git notes. Returns null if not found.
    */
   public ReviewResult getReview(String hash) {
     try {
-      Review review = gitClient.getReview(hash);
+      Review review = forRead().getReview(hash);
       return new ReviewResult(hash, currentUser, review);
     } catch (GitClientException e) {
       AppraiseConnectorPlugin.logError("Failed to load review " + hash, e);
@@ -112,16 +182,47 @@ public class AppraisePluginReviewClient {
    * Gets all the comments for a specific review by hash.
    */
   public List<ReviewCommentResult> listCommentsForReview(String hash) {
-    List<ReviewCommentResult> comments = new ArrayList<>();
     try {
-      Map<String, ReviewComment> commentsData = gitClient.listCommentsForReview(hash);
-      for (Map.Entry<String, ReviewComment> commentData : commentsData.entrySet()) {
-        comments.add(new ReviewCommentResult(commentData.getKey(), commentData.getValue()));
-      }
+      return toCommentResults(forRead().listCommentsForReview(hash));
     } catch (GitClientException e) {
       AppraiseConnectorPlugin.logError("Error loading domments for " + hash, e);
       return null;
     }
+  }
+
+  /**
+   * Gets all the comments for each of the given reviews, by review hash. The
+   * comments notes are synced and read once for the whole batch.
+   */
+  public Map<String, List<ReviewCommentResult>> listCommentsForReviews(Collection<String> hashes) {
+    try {
+      Map<String, List<ReviewCommentResult>> comments = new LinkedHashMap<>();
+      for (Map.Entry<String, Map<String, ReviewComment>> reviewComments :
+          forRead().listCommentsForReviews(hashes).entrySet()) {
+        comments.put(reviewComments.getKey(), toCommentResults(reviewComments.getValue()));
+      }
+      return comments;
+    } catch (GitClientException e) {
+      AppraiseConnectorPlugin.logError(
+          "Error loading comments for " + hashes.size() + " reviews", e);
+      return null;
+    }
+  }
+
+  /**
+   * Loads a review with its comments, diffs and submitted state, all from a
+   * single snapshot of the repository. Returns null if the review is not
+   * found.
+   */
+  public ReviewSnapshot getReviewSnapshot(String hash) throws GitClientException {
+    return forRead().getReviewSnapshot(hash);
+  }
+
+  List<ReviewCommentResult> toCommentResults(Map<String, ReviewComment> commentsData) {
+    List<ReviewCommentResult> comments = new ArrayList<>();
+    for (Map.Entry<String, ReviewComment> commentData : commentsData.entrySet()) {
+      comments.add(new ReviewCommentResult(commentData.getKey(), commentData.getValue()));
+    }
     return comments;
   }
 
@@ -149,16 +250,35 @@ public class AppraisePluginReviewClient {
    * Writes a comment to the specified review.
    * @param taskId Is the review commit hash in our model.
    * @param comment The comment to append.
-   * @return whether the comment was written out or not.
+   * @return the new comment's id, or null if the comment was not written out.
    */
-  public boolean writeComment(String taskId, ReviewComment comment) {
+  public String writeComment(String taskId, ReviewComment comment) {
     if (!displayWriteWarning(WRITE_COMMENTS_WARNING)) {
-      return false;
+      return null;
     }
     try {
-      gitClient.writeComment(taskId, comment);
+      return gitClient.writeComment(taskId, comment);
     } catch (GitClientException e) {
       AppraiseConnectorPlugin.logError("Error writing comment for " + taskId, e);
+      return null;
+    }
+  }
+
+  /**
+   * Writes many comments, across any number of reviews, in a single notes
+   * commit and push.
+   * @param commentsByTaskId The comments to append, by review commit hash.
+   * @return whether the comments were written out or not.
+   */
+  public boolean writeComments(Map<String, List<ReviewComment>> commentsByTaskId) {
+    if (!displayWriteWarning(WRITE_COMMENTS_WARNING)) {
+      return false;
+    }
+    try {
+      gitClient.writeComments(commentsByTaskId);
+    } catch (GitClientException e) {
+      AppraiseConnectorPlugin.logError(
+          "Error writing comments for " + commentsByTaskId.keySet(), e);
       return false;
     }
     return true;
@@ -11,24 +11,117 @@
 package com.google.appraise.eclipse.core;
 
 import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.IResourceChangeListener;
+import org.eclipse.core.resources.IResourceDelta;
 import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.egit.core.GitProvider;
+import org.eclipse.egit.core.project.RepositoryMapping;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.mylyn.tasks.core.TaskRepository;
 import org.eclipse.team.core.RepositoryProvider;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Useful methods for working with projects, repositories, etc.
  */
 public class AppraisePluginUtils {
+  /**
+   * The project resource changes that can change which project a task
+   * repository maps to, or the project's git repository.
+   */
+  private static final int PROJECT_CHANGE_FLAGS = IResourceDelta.OPEN | IResourceDelta.DESCRIPTION
+      | IResourceDelta.MOVED_FROM | IResourceDelta.MOVED_TO;
+
+  /**
+   * The projects of the task repositories, by task repository URL. Finding
+   * a project scans the workspace, so it is kept until the workspace's
+   * projects change.
+   */
+  private static final ConcurrentMap<String, IProject> projects = new ConcurrentHashMap<>();
+
+  /**
+   * The git repositories of the task repositories, by task repository URL.
+   */
+  private static final ConcurrentMap<String, Repository> gitRepos = new ConcurrentHashMap<>();
+
+  /**
+   * Counts the project changes, so that a lookup that raced with one does
+   * not cache what it found.
+   */
+  private static final AtomicLong projectChanges = new AtomicLong();
+
+  private static final IResourceChangeListener projectListener = new IResourceChangeListener() {
+    @Override
+    public void resourceChanged(IResourceChangeEvent event) {
+      if (event.getType() != IResourceChangeEvent.POST_CHANGE
+          || hasProjectChanges(event.getDelta())) {
+        projectChanges.incrementAndGet();
+        projects.clear();
+        gitRepos.clear();
+      }
+    }
+  };
+
+  /**
+   * Starts tracking the workspace's projects, so that the cached mappings
+   * are dropped when projects are added, removed, opened, closed or renamed.
+   */
+  static void startTrackingProjects() {
+    ResourcesPlugin.getWorkspace().addResourceChangeListener(projectListener,
+        IResourceChangeEvent.POST_CHANGE | IResourceChangeEvent.PRE_CLOSE
+        | IResourceChangeEvent.PRE_DELETE);
+  }
+
+  static void stopTrackingProjects() {
+    ResourcesPlugin.getWorkspace().removeResourceChangeListener(projectListener);
+    projects.clear();
+    gitRepos.clear();
+  }
+
+  private static boolean hasProjectChanges(IResourceDelta delta) {
+    if (delta == null) {
+      return false;
+    }
+    for (IResourceDelta projectDelta : delta.getAffectedChildren()) {
+      if (projectDelta.getKind() != IResourceDelta.CHANGED
+          || (projectDelta.getFlags() & PROJECT_CHANGE_FLAGS) != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Caches what a lookup found, unless the projects changed since the lookup
+   * started.
+   * @param changes The project change count when the lookup started.
+   */
+  private static <T> void cache(ConcurrentMap<String, T> cache, String url, T value,
+      long changes) {
+    cache.put(url, value);
+    // A project change may have come in and cleared the cache before the put.
+    if (projectChanges.get() != changes) {
+      cache.remove(url, value);
+    }
+  }
 
   /**
    * Gets the Eclipse project (if any) for the given task repository.
    */
   public static IProject getProjectForRepository(TaskRepository repo) {
-    for (IProject project : ResourcesPlugin.getWorkspace().getRoot().getProjects()) {
-      if (repo.getUrl().endsWith(project.getName())) {
-        return project;
+    IProject project = projects.get(repo.getUrl());
+    if (project != null) {
+      return project;
+    }
+    long changes = projectChanges.get();
+    for (IProject candidate : ResourcesPlugin.getWorkspace().getRoot().getProjects()) {
+      if (repo.getUrl().endsWith(candidate.getName())) {
+        cache(projects, repo.getUrl(), candidate, changes);
+        return candidate;
       }
     }
     return null;
@@ -38,12 +131,21 @@ public class AppraisePluginUtils {
    * Gets the git repository object (if any) associated with the given task repository.
    */
   public static Repository getGitRepoForRepository(TaskRepository repo) {
+    Repository gitRepo = gitRepos.get(repo.getUrl());
+    if (gitRepo != null) {
+      return gitRepo;
+    }
+    long changes = projectChanges.get();
     IProject project = getProjectForRepository(repo);
     GitProvider provider = (GitProvider) RepositoryProvider.getProvider(project, GitProvider.ID);
     if (provider != null) {
-      return provider.getData().getRepositoryMapping(project).getRepository();
+      RepositoryMapping mapping = provider.getData().getRepositoryMapping(project);
+      gitRepo = mapping.getRepository();
+      if (gitRepo != null) {
+        cache(gitRepos, repo.getUrl(), gitRepo, changes);
+      }
+      return gitRepo;
     }
     return null;
   }
 }
-
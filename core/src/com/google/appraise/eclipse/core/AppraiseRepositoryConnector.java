@@ -11,15 +11,21 @@
 package com.google.appraise.eclipse.core;
 
 import com.google.appraise.eclipse.core.client.data.ReviewCommentResult;
+import com.google.appraise.eclipse.core.client.data.ReviewPage;
 import com.google.appraise.eclipse.core.client.data.ReviewResult;
-import com.google.appraise.eclipse.core.client.git.AppraiseGitReviewClient;
+import com.google.appraise.eclipse.core.client.data.User;
 import com.google.appraise.eclipse.core.client.git.GitClientException;
+import com.google.appraise.eclipse.core.client.git.ReviewHeader;
+import com.google.appraise.eclipse.core.client.git.ReviewSnapshot;
 
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Status;
-import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.events.ConfigChangedEvent;
+import org.eclipse.jgit.events.ConfigChangedListener;
+import org.eclipse.jgit.events.ListenerHandle;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.mylyn.tasks.core.AbstractRepositoryConnector;
 import org.eclipse.mylyn.tasks.core.IRepositoryQuery;
 import org.eclipse.mylyn.tasks.core.ITask;
@@ -31,7 +37,9 @@ import org.eclipse.mylyn.tasks.core.data.TaskMapper;
 import org.eclipse.mylyn.tasks.core.sync.ISynchronizationSession;
 
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The Appraise review repository connector implementation.
@@ -39,8 +47,13 @@ import java.util.List;
 public class AppraiseRepositoryConnector extends AbstractRepositoryConnector {
   private final AppraiseReviewsTaskDataHandler taskDataHandler;
 
+  /**
+   * The review clients, by task repository URL.
+   */
+  private final Map<String, CachedClient> clients = new HashMap<>();
+
   public AppraiseRepositoryConnector() {
-    taskDataHandler = new AppraiseReviewsTaskDataHandler();
+    taskDataHandler = new AppraiseReviewsTaskDataHandler(this);
   }
 
   @Override
@@ -79,39 +92,24 @@ public class AppraiseRepositoryConnector extends AbstractRepositoryConnector {
           "Failed to initialize git client" + taskIdOrKey, e));
     }
     
-    ReviewResult review = client.getReview(taskIdOrKey);
-    if (review == null) {
-      throw new CoreException(new Status(
-          IStatus.ERROR, AppraiseConnectorPlugin.PLUGIN_ID, "Failed to review " + taskIdOrKey));
-    }
-
-    List<ReviewCommentResult> comments;
+    // Everything comes from one sync and one snapshot of the repository.
+    ReviewSnapshot snapshot;
     try {
-      comments = client.listCommentsForReview(taskIdOrKey);
-    } catch (Exception e) {
-      throw new CoreException(new Status(IStatus.ERROR, AppraiseConnectorPlugin.PLUGIN_ID,
-          "Failed to load review comments for " + taskIdOrKey, e));
-    }
-
-    List<DiffEntry> diffs;
-    try {
-      diffs =
-          new AppraiseGitReviewClient(AppraisePluginUtils.getGitRepoForRepository(repository))
-              .getDiff(taskIdOrKey);
-    } catch (Exception e) {
+      snapshot = client.getReviewSnapshot(taskIdOrKey);
+    } catch (GitClientException e) {
       throw new CoreException(new Status(IStatus.ERROR, AppraiseConnectorPlugin.PLUGIN_ID,
-          "Failed to load review diffs for " + taskIdOrKey, e));
+          "Failed to load review " + taskIdOrKey, e));
     }
-
-    boolean isSubmitted = false;
-    try {
-      isSubmitted = client.isReviewSubmitted(review);
-    } catch (Exception e) {
-      throw new CoreException(new Status(IStatus.ERROR, AppraiseConnectorPlugin.PLUGIN_ID,
-          "Failed check is-submitted for " + taskIdOrKey, e));
+    if (snapshot == null) {
+      throw new CoreException(new Status(
+          IStatus.ERROR, AppraiseConnectorPlugin.PLUGIN_ID, "Failed to review " + taskIdOrKey));
     }
 
-    return taskDataHandler.createFullTaskData(repository, review, comments, diffs, isSubmitted);
+    ReviewResult review =
+        new ReviewResult(taskIdOrKey, client.getCurrentUser(), snapshot.getReview());
+    List<ReviewCommentResult> comments = client.toCommentResults(snapshot.getComments());
+    return taskDataHandler.createFullTaskData(repository, review, comments, snapshot.getDiffs(),
+        snapshot.getDiffTexts(), snapshot.isSubmitted());
   }
 
   @Override
@@ -154,35 +152,75 @@ public class AppraiseRepositoryConnector extends AbstractRepositoryConnector {
     String reviewCommitPrefix =
         query.getAttribute(AppraiseConnectorPlugin.QUERY_REVIEW_COMMIT_PREFIX);
 
-    List<ReviewResult> reviews = client.listReviews();
-    if (reviews == null) {
+    int limit = parseLimit(query.getAttribute(AppraiseConnectorPlugin.QUERY_LIMIT));
+
+    // A user-requested synchronization should see the latest notes, rather than a recent sync.
+    if (session != null && session.isUser() && !client.refresh()) {
       return new Status(Status.ERROR, AppraiseConnectorPlugin.PLUGIN_ID,
-          "Error running review list query");
+          "Error syncing reviews");
     }
-    
-    for (ReviewResult review : reviews) {
-      TaskData taskData = taskDataHandler.createPartialTaskData(repository, review);
-      boolean shouldAccept = false;
-      if (!reviewer && !requester) {
-        // Accept everything if no filters are set.
-        shouldAccept = true;
-      } else if (reviewer && review.isCurrentUserReviewer()) {
-        shouldAccept = true;
-      } else if (requester && review.isCurrentUserRequester()) {
-        shouldAccept = true;
-      }
 
-      if (reviewCommitPrefix != null && !reviewCommitPrefix.isEmpty()) {
-        shouldAccept = shouldAccept && review.getHash().startsWith(reviewCommitPrefix);
+    // Page through the reviews newest first, until enough of them pass the filters.
+    int accepted = 0;
+    String cursor = null;
+    do {
+      ReviewPage<ReviewHeader> page = client.listReviews(limit, cursor);
+      if (page == null) {
+        return new Status(Status.ERROR, AppraiseConnectorPlugin.PLUGIN_ID,
+            "Error running review list query");
       }
+      cursor = page.getNextCursor();
 
-      if (shouldAccept) {
-        collector.accept(taskData);
+      for (ReviewHeader review : page.getReviews()) {
+        if (limit > 0 && accepted >= limit) {
+          return Status.OK_STATUS;
+        }
+        if (acceptReview(review, client.getCurrentUser(), reviewer, requester,
+            reviewCommitPrefix)) {
+          collector.accept(taskDataHandler.createPartialTaskData(repository, review));
+          accepted++;
+        }
       }
-    }
+    } while (cursor != null && !monitor.isCanceled());
     return Status.OK_STATUS;
   }
 
+  /**
+   * Parses the query's review limit, where 0 means no limit.
+   */
+  private int parseLimit(String limit) {
+    if (limit == null || limit.isEmpty()) {
+      return 0;
+    }
+    try {
+      return Math.max(0, Integer.parseInt(limit.trim()));
+    } catch (NumberFormatException e) {
+      AppraiseConnectorPlugin.logWarning("Ignoring invalid review query limit: " + limit, e);
+      return 0;
+    }
+  }
+
+  /**
+   * Checks a review against the query's filters.
+   */
+  private boolean acceptReview(ReviewHeader review, User currentUser, boolean reviewer,
+      boolean requester, String reviewCommitPrefix) {
+    boolean shouldAccept = false;
+    if (!reviewer && !requester) {
+      // Accept everything if no filters are set.
+      shouldAccept = true;
+    } else if (reviewer && currentUser != null && review.hasReviewer(currentUser)) {
+      shouldAccept = true;
+    } else if (requester && currentUser != null && currentUser.matches(review.getRequester())) {
+      shouldAccept = true;
+    }
+
+    if (reviewCommitPrefix != null && !reviewCommitPrefix.isEmpty()) {
+      shouldAccept = shouldAccept && review.getHash().name().startsWith(reviewCommitPrefix);
+    }
+    return shouldAccept;
+  }
+
   @Override
   public void updateRepositoryConfiguration(TaskRepository taskRepository, IProgressMonitor monitor)
       throws CoreException {}
@@ -198,13 +236,73 @@ public class AppraiseRepositoryConnector extends AbstractRepositoryConnector {
     return new AppraiseTaskMapper(taskData);
   }
 
-  protected AppraisePluginReviewClient getReviewClient(TaskRepository taskRepository)
+  /**
+   * Gets the review client for the given task repository. The client is
+   * created on first use, and then kept, along with the git repository it
+   * resolved, until {@link #invalidateReviewClient} drops it, the git
+   * repository's config changes, or the task repository no longer maps to
+   * that git repository.
+   */
+  public AppraisePluginReviewClient getReviewClient(TaskRepository taskRepository)
       throws GitClientException {
-    return new AppraisePluginReviewClient(taskRepository);
+    final String repositoryUrl = taskRepository.getRepositoryUrl();
+    // This is cached until the workspace's projects change, so it is cheap to check.
+    Repository gitRepo = AppraisePluginUtils.getGitRepoForRepository(taskRepository);
+    synchronized (clients) {
+      CachedClient cached = clients.get(repositoryUrl);
+      if (cached != null && cached.client.getGitRepo() != gitRepo) {
+        // The project was closed, removed or renamed, or mapped to another git repository.
+        clients.remove(repositoryUrl);
+        cached.configListener.remove();
+        cached = null;
+      }
+      if (cached == null) {
+        AppraisePluginReviewClient client = new AppraisePluginReviewClient(taskRepository);
+        // The client caches the user and the appraise settings from the git config.
+        ListenerHandle configListener = client.getGitRepo().getListenerList()
+            .addConfigChangedListener(new ConfigChangedListener() {
+              @Override
+              public void onConfigChanged(ConfigChangedEvent event) {
+                invalidateReviewClient(repositoryUrl);
+              }
+            });
+        cached = new CachedClient(client, configListener);
+        clients.put(repositoryUrl, cached);
+      }
+      return cached.client;
+    }
+  }
+
+  /**
+   * Drops the review client of the given task repository, e.g. because the
+   * task repository was removed or its settings changed, so that the next
+   * {@link #getReviewClient} call creates a new one.
+   */
+  public void invalidateReviewClient(String repositoryUrl) {
+    CachedClient cached;
+    synchronized (clients) {
+      cached = clients.remove(repositoryUrl);
+    }
+    if (cached != null) {
+      cached.configListener.remove();
+    }
   }
 
   @Override
   public AbstractTaskDataHandler getTaskDataHandler() {
     return taskDataHandler;
   }
+
+  /**
+   * A cached review client, with the listener that invalidates it.
+   */
+  private static class CachedClient {
+    final AppraisePluginReviewClient client;
+    final ListenerHandle configListener;
+
+    CachedClient(AppraisePluginReviewClient client, ListenerHandle configListener) {
+      this.client = client;
+      this.configListener = configListener;
+    }
+  }
 }
@@ -15,6 +15,7 @@ import com.google.appraise.eclipse.core.client.data.ReviewComment;
 import com.google.appraise.eclipse.core.client.data.ReviewCommentResult;
 import com.google.appraise.eclipse.core.client.data.ReviewResult;
 import com.google.appraise.eclipse.core.client.git.GitClientException;
+import com.google.appraise.eclipse.core.client.git.ReviewHeader;
 
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.runtime.CoreException;
@@ -40,6 +41,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -56,9 +58,15 @@ public class AppraiseReviewsTaskDataHandler extends AbstractTaskDataHandler {
    */
   private AppraiseReviewTaskSchema schema;
 
-  public AppraiseReviewsTaskDataHandler() {
+  /**
+   * The connector, which hands out the review clients.
+   */
+  private final AppraiseRepositoryConnector connector;
+
+  public AppraiseReviewsTaskDataHandler(AppraiseRepositoryConnector connector) {
     super();
     this.schema = AppraiseReviewTaskSchema.getDefault();
+    this.connector = connector;
   }
 
   @Override
@@ -66,7 +74,7 @@ public class AppraiseReviewsTaskDataHandler extends AbstractTaskDataHandler {
       Set<TaskAttribute> oldAttributes, IProgressMonitor monitor) throws CoreException {
     AppraisePluginReviewClient client;
     try {
-      client = new AppraisePluginReviewClient(repository);
+      client = connector.getReviewClient(repository);
     } catch (GitClientException e) {
       throw new CoreException(new Status(
           IStatus.ERROR, AppraiseConnectorPlugin.PLUGIN_ID, "Failed to initialize git client", e));
@@ -177,7 +185,7 @@ public class AppraiseReviewsTaskDataHandler extends AbstractTaskDataHandler {
     AppraisePluginReviewClient client;
 
     try {
-      client = new AppraisePluginReviewClient(repository);
+      client = connector.getReviewClient(repository);
     } catch (GitClientException e1) {
       throw new CoreException(new Status(
           IStatus.ERROR, AppraiseConnectorPlugin.PLUGIN_ID, "Failed to initialize git client"));
@@ -218,7 +226,7 @@ public class AppraiseReviewsTaskDataHandler extends AbstractTaskDataHandler {
     // on the task data.
     try {
       List<DiffEntry> diffs = client.getReviewDiffs(currentBranch, MASTER_REF);
-      populateDiffs(repository, diffs, taskData);
+      populateDiffs(repository, diffs, null, taskData);
     } catch (Exception e) {
       throw new CoreException(new Status(
           IStatus.ERROR, AppraiseConnectorPlugin.PLUGIN_ID, "Failed to load review diffs", e));
@@ -251,12 +259,21 @@ public class AppraiseReviewsTaskDataHandler extends AbstractTaskDataHandler {
   /**
    * Creates partial task data suitable for the list view. This excludes comments.
    */
-  public TaskData createPartialTaskData(TaskRepository repository, ReviewResult review) {
+  public TaskData createPartialTaskData(TaskRepository repository, ReviewHeader review) {
+    String hash = review.getHash().name();
     TaskData taskData = new TaskData(getAttributeMapper(repository), repository.getConnectorKind(),
-        repository.getRepositoryUrl(), review.getHash());
+        repository.getRepositoryUrl(), hash);
     schema.initialize(taskData);
     taskData.setPartial(true);
-    populateTaskData(taskData, review, repository);
+    setAttributeValue(taskData, schema.REQUESTER, review.getRequester());
+    setAttributeValue(taskData, schema.REVIEW_REF, review.getReviewRef());
+    setAttributeValue(taskData, schema.TARGET_REF, review.getTargetRef());
+    setAttributeValue(taskData, schema.REVIEW_COMMIT, hash);
+    setAttributeValue(taskData, schema.DESCRIPTION, review.getSummary());
+    setCreated(taskData, review.getTimestamp());
+    populateRepositoryAttributes(taskData, repository);
+    setAttributeValue(
+        taskData.getRoot().getAttribute(schema.REVIEWERS.getKey()), review.getReviewersString());
     return taskData;
   }
 
@@ -266,11 +283,27 @@ public class AppraiseReviewsTaskDataHandler extends AbstractTaskDataHandler {
     setAttributeValue(taskData, schema.TARGET_REF, review.getReview().getTargetRef());
     setAttributeValue(taskData, schema.REVIEW_COMMIT, review.getHash());
     setAttributeValue(taskData, schema.DESCRIPTION, review.getReview().getDescription());
-    if (review.getReview().getTimestamp() > 0) {
-      Date date = new Date(review.getReview().getTimestamp() * 1000);
+    setCreated(taskData, review.getReview().getTimestamp());
+    populateRepositoryAttributes(taskData, repository);
+
+    TaskAttribute reviewersAttr = taskData.getRoot().getAttribute(schema.REVIEWERS.getKey());
+    setAttributeValue(reviewersAttr, review.getReview().getReviewersString());
+  }
+
+  /**
+   * Sets the creation date from a review timestamp in seconds, if there is one.
+   */
+  private void setCreated(TaskData taskData, long timestamp) {
+    if (timestamp > 0) {
+      Date date = new Date(timestamp * 1000);
       setAttributeValue(taskData, schema.CREATED, Long.toString(date.getTime()));
     }
+  }
 
+  /**
+   * Sets the attributes that come from the task repository rather than the review.
+   */
+  private void populateRepositoryAttributes(TaskData taskData, TaskRepository repository) {
     IProject project = AppraisePluginUtils.getProjectForRepository(repository);
     TaskAttribute productAttr = taskData.getRoot().createAttribute(TaskAttribute.PRODUCT);
     setAttributeValue(productAttr, project.getName());
@@ -280,9 +313,6 @@ public class AppraiseReviewsTaskDataHandler extends AbstractTaskDataHandler {
         .getMetaData()
         .setType(TaskAttribute.TYPE_LONG_RICH_TEXT)
         .setReadOnly(false);
-
-    TaskAttribute reviewersAttr = taskData.getRoot().getAttribute(schema.REVIEWERS.getKey());
-    setAttributeValue(reviewersAttr, review.getReview().getReviewersString());
   }
 
   private IRepositoryPerson createPerson(String userName, TaskRepository repository) {
@@ -293,16 +323,19 @@ public class AppraiseReviewsTaskDataHandler extends AbstractTaskDataHandler {
 
   /**
    * Creates the full task data (including comments and diffs).
+   * @param diffTexts The already formatted text of the diffs, or null to
+   *     format them here.
    */
   public TaskData createFullTaskData(TaskRepository repository, ReviewResult review,
-      List<ReviewCommentResult> comments, List<DiffEntry> diffs, boolean isSubmitted) {
+      List<ReviewCommentResult> comments, List<DiffEntry> diffs,
+      Map<DiffEntry, String> diffTexts, boolean isSubmitted) {
     TaskData taskData = new TaskData(getAttributeMapper(repository), repository.getConnectorKind(),
         repository.getRepositoryUrl(), review.getHash());
     schema.initialize(taskData);
     populateTaskData(taskData, review, repository);
 
     setAttributeValue(taskData, schema.IS_SUBMITTED, Boolean.toString(isSubmitted));
-    populateDiffs(repository, diffs, taskData);
+    populateDiffs(repository, diffs, diffTexts, taskData);
     populateComments(repository, comments, taskData, review.getReview().getTimestamp());
 
     return taskData;
@@ -381,42 +414,59 @@ public class AppraiseReviewsTaskDataHandler extends AbstractTaskDataHandler {
   }
 
   /**
-   * Fills the diffs into the given task data.
+   * Fills the diffs into the given task data. Diffs whose text is not given
+   * are formatted here.
    */
-  private void populateDiffs(TaskRepository repository, List<DiffEntry> diffs, TaskData taskData) {
-    int diffCount = 1;
-    for (DiffEntry diffEntry : diffs) {
-      TaskAttribute diffAttribute =
-          taskData.getRoot().createAttribute(AppraiseReviewTaskSchema.PREFIX_DIFF + diffCount);
-      diffAttribute.getMetaData().setType(AppraiseReviewTaskSchema.TYPE_DIFF);
-
-      TaskAttribute diffNewPathAttribute =
-          diffAttribute.createAttribute(AppraiseReviewTaskSchema.DIFF_NEWPATH);
-      setAttributeValue(diffNewPathAttribute, diffEntry.getNewPath());
-
-      TaskAttribute diffOldPathAttribute =
-          diffAttribute.createAttribute(AppraiseReviewTaskSchema.DIFF_OLDPATH);
-      setAttributeValue(diffOldPathAttribute, diffEntry.getNewPath());
-
-      TaskAttribute diffTypeAttribute =
-          diffAttribute.createAttribute(AppraiseReviewTaskSchema.DIFF_TYPE);
-      setAttributeValue(diffTypeAttribute, diffEntry.getChangeType().name());
-
-      TaskAttribute diffTextAttribute =
-          diffAttribute.createAttribute(AppraiseReviewTaskSchema.DIFF_TEXT);
-      ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
-      try (DiffFormatter formatter = new DiffFormatter(diffOutputStream)) {
-        formatter.setRepository(AppraisePluginUtils.getGitRepoForRepository(repository));
-        try {
-          formatter.format(diffEntry);
-          String diffText = new String(diffOutputStream.toByteArray(), "UTF-8");
+  private void populateDiffs(TaskRepository repository, List<DiffEntry> diffs,
+      Map<DiffEntry, String> diffTexts, TaskData taskData) {
+    ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+    DiffFormatter formatter = null;
+    try {
+      int diffCount = 1;
+      for (DiffEntry diffEntry : diffs) {
+        TaskAttribute diffAttribute =
+            taskData.getRoot().createAttribute(AppraiseReviewTaskSchema.PREFIX_DIFF + diffCount);
+        diffAttribute.getMetaData().setType(AppraiseReviewTaskSchema.TYPE_DIFF);
+
+        TaskAttribute diffNewPathAttribute =
+            diffAttribute.createAttribute(AppraiseReviewTaskSchema.DIFF_NEWPATH);
+        setAttributeValue(diffNewPathAttribute, diffEntry.getNewPath());
+
+        TaskAttribute diffOldPathAttribute =
+            diffAttribute.createAttribute(AppraiseReviewTaskSchema.DIFF_OLDPATH);
+        setAttributeValue(diffOldPathAttribute, diffEntry.getNewPath());
+
+        TaskAttribute diffTypeAttribute =
+            diffAttribute.createAttribute(AppraiseReviewTaskSchema.DIFF_TYPE);
+        setAttributeValue(diffTypeAttribute, diffEntry.getChangeType().name());
+
+        TaskAttribute diffTextAttribute =
+            diffAttribute.createAttribute(AppraiseReviewTaskSchema.DIFF_TEXT);
+        String diffText = (diffTexts != null) ? diffTexts.get(diffEntry) : null;
+        if (diffText == null) {
+          if (formatter == null) {
+            formatter = new DiffFormatter(diffOutputStream);
+            formatter.setRepository(AppraisePluginUtils.getGitRepoForRepository(repository));
+          }
+          try {
+            diffOutputStream.reset();
+            formatter.format(diffEntry);
+            formatter.flush();
+            diffText = new String(diffOutputStream.toByteArray(), "UTF-8");
+          } catch (IOException e) {
+            AppraiseConnectorPlugin.logWarning(
+                "Failed to load a diff for " + taskData.getTaskId(), e);
+          }
+        }
+        if (diffText != null) {
           setAttributeValue(diffTextAttribute, diffText);
-        } catch (IOException e) {
-          AppraiseConnectorPlugin.logWarning(
-              "Failed to load a diff for " + taskData.getTaskId(), e);
         }
+        diffCount++;
+      }
+    } finally {
+      if (formatter != null) {
+        formatter.close();
       }
-      diffCount++;
     }
   }
 }
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Google and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Scott McMaster - initial implementation
+ *******************************************************************************/
+package com.google.appraise.eclipse.core;
+
+import com.google.appraise.eclipse.core.client.git.AppraiseGitReviewClient;
+import com.google.appraise.eclipse.core.client.git.GitClientException;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Periodically fetches and merges the review and comment notes of one git
+ * repository, so that queries and editors can read the local notes refs
+ * without waiting on the network. When the remote fails, the interval backs
+ * off exponentially, up to {@link #MAX_BACKOFF_MS}. After each sync, the
+ * packs that packed notes writes leave behind are consolidated if needed.
+ */
+class NotesSyncJob extends Job {
+  /**
+   * The longest the job waits between attempts while the remote is failing.
+   */
+  static final long MAX_BACKOFF_MS = 60 * 60 * 1000;
+
+  private final Repository repo;
+  private final long intervalMs;
+
+  /**
+   * How many syncs in a row have failed.
+   */
+  private int failures;
+
+  private volatile boolean stopped;
+
+  /**
+   * Whether at least one sync has succeeded.
+   */
+  private volatile boolean synced;
+
+  NotesSyncJob(Repository repo, long intervalMs) {
+    super("Syncing Appraise review notes");
+    this.repo = repo;
+    this.intervalMs = intervalMs;
+    setSystem(true);
+    setRule(new RepositorySchedulingRule(repo));
+  }
+
+  @Override
+  protected IStatus run(IProgressMonitor monitor) {
+    if (monitor.isCanceled()) {
+      return Status.CANCEL_STATUS;
+    }
+    try {
+      AppraiseGitReviewClient client = new AppraiseGitReviewClient(repo);
+      client.syncCommentsAndReviews(true);
+      failures = 0;
+      synced = true;
+      consolidatePacks(client);
+    } catch (GitClientException e) {
+      // Only the first failure in a row is logged, so an unreachable remote does
+      // not flood the log.
+      if (failures++ == 0) {
+        AppraiseConnectorPlugin.logWarning(
+            "Background notes sync failed for " + repo.getDirectory(), e);
+      }
+    }
+    schedule(getNextDelay());
+    return Status.OK_STATUS;
+  }
+
+  /**
+   * Consolidates the notes packs once the packed notes writes have left too
+   * many, if the repository opted in. Failures are only logged, since the
+   * notes are synced regardless.
+   */
+  private void consolidatePacks(AppraiseGitReviewClient client) {
+    try {
+      client.consolidatePacks();
+    } catch (GitClientException e) {
+      AppraiseConnectorPlugin.logWarning(
+          "Failed to consolidate the notes packs of " + repo.getDirectory(), e);
+    }
+  }
+
+  /**
+   * The delay before the next sync, doubling with each failure in a row.
+   */
+  private long getNextDelay() {
+    long delay = intervalMs;
+    for (int i = 0; i < failures && delay < MAX_BACKOFF_MS; i++) {
+      delay *= 2;
+    }
+    return Math.min(delay, Math.max(intervalMs, MAX_BACKOFF_MS));
+  }
+
+  @Override
+  public boolean shouldSchedule() {
+    return !stopped;
+  }
+
+  /**
+   * Whether the job has synced the notes at least once, so that the local
+   * notes refs can be read without syncing first.
+   */
+  boolean hasSynced() {
+    return synced;
+  }
+
+  /**
+   * Stops the job for good.
+   */
+  void stop() {
+    stopped = true;
+    cancel();
+  }
+}
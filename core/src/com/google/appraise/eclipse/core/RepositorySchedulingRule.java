@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Google and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Scott McMaster - initial implementation
+ *******************************************************************************/
+package com.google.appraise.eclipse.core;
+
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.File;
+
+/**
+ * A scheduling rule for jobs that work on the Appraise notes of one git
+ * repository. Jobs on the same repository run one at a time, and jobs on
+ * different repositories do not block each other.
+ */
+public class RepositorySchedulingRule implements ISchedulingRule {
+  private final File gitDir;
+
+  public RepositorySchedulingRule(Repository repo) {
+    this.gitDir = repo.getDirectory().getAbsoluteFile();
+  }
+
+  @Override
+  public boolean contains(ISchedulingRule rule) {
+    return isConflicting(rule);
+  }
+
+  @Override
+  public boolean isConflicting(ISchedulingRule rule) {
+    return rule instanceof RepositorySchedulingRule
+        && gitDir.equals(((RepositorySchedulingRule) rule).gitDir);
+  }
+}
@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Google and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Scott McMaster - initial implementation
+ *******************************************************************************/
+package com.google.appraise.eclipse.core.client.data;
+
+import java.util.List;
+
+/**
+ * One page of a review listing, newest first, along with the cursor to pass
+ * back in to get the next page.
+ * @param <T> The type the reviews on the page are listed as.
+ */
+public class ReviewPage<T> {
+  private final List<T> reviews;
+  private final String nextCursor;
+
+  public ReviewPage(List<T> reviews, String nextCursor) {
+    this.reviews = reviews;
+    this.nextCursor = nextCursor;
+  }
+
+  /**
+   * The reviews on this page, newest first.
+   */
+  public List<T> getReviews() {
+    return reviews;
+  }
+
+  /**
+   * The cursor for the next page, or null if this is the last page.
+   */
+  public String getNextCursor() {
+    return nextCursor;
+  }
+
+  /**
+   * Creates the cursor that continues a listing right after the given review.
+   * Cursors are of the form "timestamp:hash".
+   */
+  public static String cursorAfter(String hash, long timestamp) {
+    return timestamp + ":" + hash;
+  }
+}
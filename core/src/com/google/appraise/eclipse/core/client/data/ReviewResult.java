@@ -10,9 +10,6 @@
  *******************************************************************************/
 package com.google.appraise.eclipse.core.client.data;
 
-import java.util.Arrays;
-import java.util.List;
-
 /**
  * Appraise review result, which exposes the hash as an id for the UI to use as a handle.
  */
@@ -58,16 +55,18 @@ public class ReviewResult {
     if (review.getReviewers() == null) {
       return false;
     }
-    List<String> reviewers = Arrays.asList(review.getReviewers());
-    return (reviewers.contains(currentUser.getUserName())
-        || reviewers.contains(currentUser.getEmail()));
+    for (String reviewer : review.getReviewers()) {
+      if (currentUser.matches(reviewer)) {
+        return true;
+      }
+    }
+    return false;
   }
 
   public boolean isCurrentUserRequester() {
     if (currentUser == null) {
       return false;
     }
-    return (currentUser.getUserName().equals(review.getRequester())
-        || currentUser.getEmail().equals(review.getRequester()));
+    return currentUser.matches(review.getRequester());
   }
 }
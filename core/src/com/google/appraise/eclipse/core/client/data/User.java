@@ -38,4 +38,12 @@ public class User {
   public void setEmail(String email) {
     this.email = email;
   }
+
+  /**
+   * Checks whether the given user name or email is this user's.
+   */
+  public boolean matches(String userNameOrEmail) {
+    return userNameOrEmail != null
+        && (userNameOrEmail.equals(userName) || userNameOrEmail.equals(email));
+  }
 }
@@ -12,51 +12,51 @@ package com.google.appraise.eclipse.core.client.git;
 
 import com.google.appraise.eclipse.core.client.data.Review;
 import com.google.appraise.eclipse.core.client.data.ReviewComment;
-import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
+import com.google.appraise.eclipse.core.client.data.ReviewPage;
 
-import org.apache.commons.codec.digest.DigestUtils;
 import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.api.ListNotesCommand;
 import org.eclipse.jgit.api.PushCommand;
-import org.eclipse.jgit.api.ShowNoteCommand;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.TransportException;
 import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
 import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectInserter;
-import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.RefUpdate.Result;
 import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.merge.MergeStrategy;
-import org.eclipse.jgit.notes.DefaultNoteMerger;
-import org.eclipse.jgit.notes.Note;
 import org.eclipse.jgit.notes.NoteMap;
-import org.eclipse.jgit.notes.NoteMapMerger;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.ReceiveCommand;
 import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
 import org.eclipse.jgit.treewalk.AbstractTreeIterator;
 import org.eclipse.jgit.treewalk.CanonicalTreeParser;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.logging.Logger;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Jgit-based utility routines for working with Appraise-style reviews.
@@ -73,8 +73,6 @@ public class AppraiseGitReviewClient {
    */
   private static final String DEVTOOLS_PUSH_REFSPEC = "refs/notes/devtools/*:refs/notes/devtools/*";
 
-  private static final Logger logger = Logger.getLogger(AppraiseGitReviewClient.class.getName());
-
   // Ref defines the git-notes ref that we expect to contain review requests.
   private static final String REVIEWS_REF = "refs/notes/devtools/reviews";
 
@@ -87,6 +85,42 @@ public class AppraiseGitReviewClient {
   // Ref defines the git-notes origin ref for review comments.
   private static final String COMMENTS_ORIGIN_REF = "refs/notes/origin/devtools/discuss";
 
+  // Git config section for the Appraise client settings.
+  public static final String CONFIG_SECTION = "appraise";
+
+  // Git config key for the number of workers that decode notes when listing reviews.
+  static final String CONFIG_LIST_PARALLELISM = "listParallelism";
+
+  // Git config key for how many seconds a notes sync stays fresh enough to skip the next one.
+  static final String CONFIG_SYNC_FRESHNESS = "syncFreshnessSeconds";
+
+  // The default notes sync freshness window, in seconds.
+  private static final int DEFAULT_SYNC_FRESHNESS_SECONDS = 30;
+
+  // Git config key for how many seconds notes pushes are deferred and coalesced. 0 pushes
+  // every write right away.
+  static final String CONFIG_WRITE_BEHIND = "writeBehindSeconds";
+
+  // Git config key for whether notes objects are written as small packs rather than as loose
+  // objects.
+  static final String CONFIG_PACK_NOTES = "packNotes";
+
+  // Git config key for whether consolidatePacks() merges the notes packs. Off by default,
+  // which leaves them to the user's gc.
+  static final String CONFIG_CONSOLIDATE_NOTES_PACKS = "consolidateNotesPacks";
+
+  // Git config key for how many notes packs the repository can have before
+  // consolidatePacks() merges them.
+  static final String CONFIG_MAX_PACKS = "maxPacks";
+
+  // The default number of notes packs that triggers a consolidation.
+  private static final int DEFAULT_MAX_PACKS = 50;
+
+  /**
+   * The repositories whose origin turned out not to support atomic pushes.
+   */
+  private static final Map<Repository, Boolean> atomicPushUnsupported = new WeakHashMap<>();
+
   /**
    * The git repository to be accessed.
    */
@@ -97,12 +131,81 @@ public class AppraiseGitReviewClient {
    */
   private final PersonIdent author;
 
+  /**
+   * How many workers decode review notes in {@link #listReviews()}.
+   */
+  private int listParallelism;
+
+  /**
+   * How long a notes sync stays fresh enough to skip the next one.
+   */
+  private long syncFreshnessMillis;
+
+  /**
+   * Whether reads sync the notes first, or trust that something else (e.g. a
+   * background job) keeps the local notes refs up to date.
+   */
+  private volatile boolean syncOnRead = true;
+
+  /**
+   * How long writes defer their notes push, or 0 to push right away.
+   */
+  private long writeBehindMillis;
+
   /**
    * Creates a new client for the given git repository.
    */
   public AppraiseGitReviewClient(Repository repo) {
     this.repo = repo;
     this.author = new PersonIdent(repo);
+    this.listParallelism = repo.getConfig().getInt(CONFIG_SECTION, CONFIG_LIST_PARALLELISM,
+        Runtime.getRuntime().availableProcessors());
+    this.syncFreshnessMillis = 1000L * repo.getConfig().getInt(
+        CONFIG_SECTION, CONFIG_SYNC_FRESHNESS, DEFAULT_SYNC_FRESHNESS_SECONDS);
+    this.writeBehindMillis =
+        1000L * repo.getConfig().getInt(CONFIG_SECTION, CONFIG_WRITE_BEHIND, 0);
+
+    // Pick up the pushes that an earlier session left unfinished.
+    if (PushQueue.hasJournal(repo)) {
+      PushQueue.forRepository(repo, writeBehindMillis);
+    }
+  }
+
+  /**
+   * Sets how many workers decode review notes when listing reviews. A value
+   * of 1 decodes sequentially on the calling thread. Defaults to the
+   * appraise.listParallelism git config value, or the number of processors.
+   */
+  public void setListParallelism(int listParallelism) {
+    this.listParallelism = listParallelism;
+  }
+
+  /**
+   * Sets how long a notes sync stays fresh, during which further syncs are
+   * skipped unless forced. 0 syncs every time. Defaults to the
+   * appraise.syncFreshnessSeconds git config value, or 30 seconds.
+   */
+  public void setSyncFreshnessMillis(long syncFreshnessMillis) {
+    this.syncFreshnessMillis = syncFreshnessMillis;
+  }
+
+  /**
+   * Sets whether listing reviews and comments syncs the notes first. Turn this
+   * off when the notes are synced in the background, so that reads only look
+   * at the local notes refs and never wait on the network. Writes always sync.
+   */
+  public void setSyncOnRead(boolean syncOnRead) {
+    this.syncOnRead = syncOnRead;
+  }
+
+  /**
+   * Sets how long writes defer pushing their notes. The notes are committed
+   * locally right away, and all the commits made within the window go out in
+   * one push; see {@link #flushPendingPushes}. 0 pushes every write right away.
+   * Defaults to the appraise.writeBehindSeconds git config value, or 0.
+   */
+  public void setWriteBehindMillis(long writeBehindMillis) {
+    this.writeBehindMillis = writeBehindMillis;
   }
 
   /**
@@ -124,134 +227,260 @@ public class AppraiseGitReviewClient {
 
   /**
    * Retrieves all the reviews in the current project's repository by commit hash.
+   * Reviews are served from the repository's {@link ReviewIndex}, so only the
+   * notes that changed since the previous listing get parsed, in parallel. The listed reviews
+   * only carry the first line of their description; see {@link #getReview}.
    */
   public Map<String, Review> listReviews() throws GitClientException {
+    return updateReviewIndex().getReviews();
+  }
+
+  /**
+   * Retrieves one page of the reviews in the current project's repository,
+   * newest first, as headers that only carry the first line of their
+   * description; see {@link #getReview}. Only the first page syncs the notes,
+   * so that the following pages continue the same listing.
+   * @param limit The most reviews to return, or 0 or less for all of them.
+   * @param cursor The next cursor from the previous page, or null for the
+   *     first page.
+   */
+  public ReviewPage<ReviewHeader> listReviews(int limit, String cursor) throws GitClientException {
+    ReviewIndex index =
+        (cursor == null) ? updateReviewIndex() : ReviewIndex.forRepository(repo);
+    try {
+      return index.getPage(limit, cursor);
+    } catch (IllegalArgumentException e) {
+      throw new GitClientException(e);
+    }
+  }
+
+  /**
+   * Syncs the notes and brings the repository's review index up to date.
+   */
+  private ReviewIndex updateReviewIndex() throws GitClientException {
     // Get the most up-to-date list of reviews.
-    syncCommentsAndReviews();
+    if (syncOnRead) {
+      syncCommentsAndReviews();
+    }
 
-    Map<String, Review> reviews = new LinkedHashMap<>();
+    try {
+      Ref notesRef = repo.getRef(REVIEWS_REF);
+      ObjectId notesCommitId = (notesRef != null) ? notesRef.getObjectId() : null;
+      ReviewIndex index = ReviewIndex.forRepository(repo);
+      index.update(repo, notesCommitId, new ParallelNoteDecoder(listParallelism));
+      return index;
+    } catch (Exception e) {
+      throw new GitClientException(e);
+    }
+  }
 
-    Git git = new Git(repo);
+  /**
+   * Gets a specific review, with its full description. Returns null if it is
+   * not found. If the review index already has the review's note, only the
+   * latest review record is parsed out of it.
+   */
+  public Review getReview(String reviewCommitHash) throws GitClientException {
     try {
-      ListNotesCommand cmd = git.notesList();
-      cmd.setNotesRef(REVIEWS_REF);
-      List<Note> notes = cmd.call();
-      for (Note note : notes) {
-        String rawNoteDataStr = noteToString(repo, note);
-        Review latest = extractLatestReviewFromNotes(rawNoteDataStr);
-        if (latest != null) {
-          reviews.put(note.getName(), latest);
-        }
+      ObjectId commitId = repo.resolve(reviewCommitHash);
+      if (commitId == null) {
+        return null;
+      }
+      ObjectId noteData = readOneNote(REVIEWS_REF, commitId);
+      if (noteData == null) {
+        return null;
+      }
+      try (ObjectReader reader = repo.newObjectReader()) {
+        return readReview(reader, commitId, noteData);
       }
     } catch (Exception e) {
       throw new GitClientException(e);
-    } finally {
-      git.close();
     }
-    return reviews;
   }
 
   /**
-   * Pulls the most recent notes data for a review out of the raw notes data string, leveraging
-   * the timestamp.
+   * Reads the latest review record out of the given review note.
    */
-  private Review extractLatestReviewFromNotes(String rawNoteDataStr) throws GitClientException {
-    String[] noteDataStrs = rawNoteDataStr.split("\n");
-    Review latest = parseReviewJson(noteDataStrs[0]);
-    for (int i = 1; i < noteDataStrs.length; i++) {
-      Review anotherOne = parseReviewJson(noteDataStrs[i]);
-      try {
-        if (latest == null
-            || ((anotherOne != null && anotherOne.getTimestamp() > latest.getTimestamp()))) {
-          latest = anotherOne;
-        }
-      } catch (Exception e) {
-        throw new GitClientException(e);
+  private Review readReview(ObjectReader reader, ObjectId commitId, ObjectId noteData)
+      throws IOException {
+    ReviewHeader header = ReviewIndex.forRepository(repo).getHeader(commitId);
+    if (header != null && header.getNoteBlobId().equals(noteData)) {
+      Review review = NoteRecordReader.readRecordAt(
+          reader.open(noteData), header.getRecordOffset(), Review.class);
+      if (review != null) {
+        return review;
       }
     }
-    return latest;
+    return NoteRecordReader.readLatestReview(reader.open(noteData));
   }
 
   /**
-   * Gets a specific review. Returns null if it is not found.
+   * Loads a review along with everything its task shows: its comments, its
+   * diffs and whether it has been submitted. The notes are synced at most
+   * once, and the notes refs and branches are each read once up front, so
+   * that everything comes from the same snapshot, read through a single
+   * {@link RevWalk} and its {@link ObjectReader}. Returns null if the review
+   * is not found.
    */
-  public Review getReview(String reviewCommitHash) throws GitClientException {
-    try (Git git = new Git(repo)) {
-      String noteDataStr = readOneNote(git, REVIEWS_REF, reviewCommitHash);
-      return extractLatestReviewFromNotes(noteDataStr);
+  public ReviewSnapshot getReviewSnapshot(String reviewCommitHash) throws GitClientException {
+    if (syncOnRead) {
+      syncCommentsAndReviews();
+    }
+
+    try (RevWalk walk = new RevWalk(repo)) {
+      ObjectReader reader = walk.getObjectReader();
+      ObjectId reviewsId = getRefId(REVIEWS_REF);
+      ObjectId commentsId = getRefId(COMMENTS_REF);
+      ObjectId commitId = repo.resolve(reviewCommitHash);
+      if (reviewsId == null || commitId == null) {
+        return null;
+      }
+
+      // The note maps are read through the snapshot's reader too, rather than taken from the
+      // NoteMapCache. A single lookup only loads the fanout trees on the note's path.
+      ObjectId reviewNote = NoteMap.read(reader, walk.parseCommit(reviewsId)).get(commitId);
+      if (reviewNote == null) {
+        return null;
+      }
+      Review review = readReview(reader, commitId, reviewNote);
+      if (review == null) {
+        return null;
+      }
+
+      Map<String, ReviewComment> comments = new LinkedHashMap<>();
+      if (commentsId != null) {
+        ObjectId commentsNote =
+            NoteMap.read(reader, walk.parseCommit(commentsId)).get(commitId);
+        if (commentsNote != null) {
+          NoteRecordReader.readComments(reader.open(commentsNote), comments);
+        }
+      }
+
+      // If the target ref is missing or the corresponding branch does not exist,
+      // the review is bogus.
+      if (review.getTargetRef() == null || review.getTargetRef().isEmpty()) {
+        throw new GitClientException("Review target ref not set: " + reviewCommitHash);
+      }
+      ObjectId targetId = getRefId(review.getTargetRef());
+      if (targetId == null) {
+        throw new GitClientException("Review target ref does not exist: " + reviewCommitHash
+            + ", " + review.getTargetRef());
+      }
+      RevCommit reviewCommit = walk.parseCommit(commitId);
+      RevCommit targetHead = walk.parseCommit(targetId);
+      ObjectId reviewRefId = getRefId(review.getReviewRef());
+
+      RevCommit oldCommit;
+      RevCommit newCommit;
+      if (review.getReviewRef() == null || review.getReviewRef().isEmpty()) {
+        // If there is no review ref, then show the diff from the single commit.
+        oldCommit = walk.parseCommit(reviewCommit.getParent(0));
+        newCommit = reviewCommit;
+      } else if (reviewRefId != null
+          && !isMergedInto(walk, walk.parseCommit(reviewRefId), targetHead)) {
+        // If the review ref branch exists and is not already submitted,
+        // then show the diff between review ref and target ref.
+        oldCommit = targetHead;
+        newCommit = walk.parseCommit(reviewRefId);
+      } else {
+        // If the review ref points to a non-existent branch, the review is over, so use the
+        // comments and diff between the parent and the "last" (chronologically) one.
+        oldCommit = walk.parseCommit(reviewCommit.getParent(0));
+        newCommit = findLastCommitInComments(walk, comments.values(), reviewCommit);
+      }
+
+      ByteArrayOutputStream diffOutput = new ByteArrayOutputStream();
+      Map<DiffEntry, String> diffTexts = new LinkedHashMap<>();
+      List<DiffEntry> diffs;
+      try (DiffFormatter formatter = new DiffFormatter(diffOutput)) {
+        formatter.setReader(reader, repo.getConfig());
+        diffs = formatter.scan(oldCommit.getTree(), newCommit.getTree());
+        for (DiffEntry diff : diffs) {
+          diffOutput.reset();
+          formatter.format(diff);
+          formatter.flush();
+          diffTexts.put(diff, new String(diffOutput.toByteArray(), "UTF-8"));
+        }
+      }
+
+      boolean submitted = isMergedInto(walk, reviewCommit, targetHead);
+      return new ReviewSnapshot(review, comments, diffs, diffTexts, submitted);
+    } catch (GitClientException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new GitClientException("Failed to load review " + reviewCommitHash, e);
     }
   }
 
   /**
-   * Helper method that parses the given JSON data for a review and returns
-   * null if the parsing fails for any reason.
+   * Gets the id that the given ref points to, or null if the ref is not set
+   * or does not exist.
    */
-  private Review parseReviewJson(String noteDataStr) {
-    try {
-      return new Gson().fromJson(noteDataStr, Review.class);
-    } catch (JsonSyntaxException jse) {
-      logger.warning("Weird data in review note: " + noteDataStr);
+  private ObjectId getRefId(String refName) throws IOException {
+    if (refName == null || refName.isEmpty()) {
       return null;
     }
+    Ref ref = repo.getRef(refName);
+    return (ref != null) ? ref.getObjectId() : null;
+  }
+
+  private static boolean isMergedInto(RevWalk walk, RevCommit base, RevCommit tip)
+      throws IOException {
+    walk.reset();
+    return walk.isMergedInto(base, tip);
   }
 
   /**
-   * Reads a single note out as a string from the given commit hash.
-   * Returns null if the note isn't found.
+   * Reads the id of a single note blob for the given commit, through the
+   * {@link NoteMapCache}. Returns null if the note isn't found.
    */
-  private String readOneNote(Git git, String notesRef, String hash) throws GitClientException {
-    try (RevWalk walker = new RevWalk(git.getRepository())) {
-      ShowNoteCommand cmd = git.notesShow();
-      cmd.setNotesRef(notesRef);
-      ObjectId ref = git.getRepository().resolve(hash);
-      RevCommit commit = walker.parseCommit(ref);
-      cmd.setObjectId(commit);
-      Note note = cmd.call();
-      if (note == null) {
-        return null;
-      }
-      return noteToString(repo, note);
-    } catch (Exception e) {
-      throw new GitClientException(e);
+  private ObjectId readOneNote(String notesRefName, ObjectId commitId) throws IOException {
+    Ref notesRef = repo.getRef(notesRefName);
+    if (notesRef == null) {
+      return null;
     }
+    return NoteMapCache.forRepository(repo).getNoteData(repo, notesRef.getObjectId(), commitId);
   }
 
   /**
    * Adds a new comment to the review and writes it to the notes.
    * @param reviewCommitHash Is the review commit hash in our model.
    * @param commentData The comment to append.
+   * @return the new comment's id.
    */
-  public void writeComment(String reviewCommitHash, String commentData) throws GitClientException {
+  public String writeComment(String reviewCommitHash, String commentData)
+      throws GitClientException {
     ReviewComment comment = new ReviewComment();
     comment.setDescription(commentData);
     // Will fill in the time and author.
-    writeComment(reviewCommitHash, comment);
+    return writeComment(reviewCommitHash, comment);
   }
 
   /**
    * Writes the given comment to the given review, automatically filling in
    * the author and timestamp.
+   * @return the new comment's id.
    */
-  public void writeComment(String reviewCommitHash, ReviewComment comment)
+  public String writeComment(String reviewCommitHash, ReviewComment comment)
       throws GitClientException {
-    // Sync to minimize the chances of non-linear merges.
-    syncCommentsAndReviews();
+    syncBeforeWrite();
 
     // Commit.
-    commitCommentNote(reviewCommitHash, comment);
+    String commentId = commitCommentNote(reviewCommitHash, comment);
 
     // Push.
     try {
-      pushCommentsAndReviews();
+      publishNotes(COMMENTS_REF);
     } catch (Exception e) {
       throw new GitClientException("Error pushing, review is " + reviewCommitHash, e);
     }
+    return commentId;
   }
 
   /**
    * Helper method that commits a new comment to the git notes.
+   * @return the comment's id.
    */
-  private void commitCommentNote(String reviewCommitHash, ReviewComment comment) {
+  private String commitCommentNote(String reviewCommitHash, ReviewComment comment) {
     try (GitNoteWriter<ReviewComment> writer =
         GitNoteWriter.createNoteWriter(reviewCommitHash, repo, author, COMMENTS_REF)) {
       // We store time in seconds in the notes.
@@ -261,6 +490,47 @@ public class AppraiseGitReviewClient {
       List<ReviewComment> comments = new ArrayList<ReviewComment>();
       comments.add(comment);
       writer.create("Writing comment for " + reviewCommitHash, comments);
+      return GitNoteWriter.recordId(comment);
+    }
+  }
+
+  /**
+   * Writes many comments, across any number of reviews, with a single sync,
+   * a single notes commit and a single push. The author is filled in, as is
+   * the timestamp of comments that do not have one yet.
+   * @param commentsByReview The comments to append, by review commit hash.
+   */
+  public void writeComments(Map<String, List<ReviewComment>> commentsByReview)
+      throws GitClientException {
+    if (commentsByReview.isEmpty()) {
+      return;
+    }
+
+    syncBeforeWrite();
+
+    // Commit.
+    long timestamp = System.currentTimeMillis() / 1000;
+    int count = 0;
+    for (List<ReviewComment> comments : commentsByReview.values()) {
+      for (ReviewComment comment : comments) {
+        if (comment.getTimestamp() == 0) {
+          comment.setTimestamp(timestamp);
+        }
+        comment.setAuthor(author.getEmailAddress());
+        count++;
+      }
+    }
+    try (GitNoteWriter<ReviewComment> writer =
+        GitNoteWriter.createNoteWriter(repo, author, COMMENTS_REF)) {
+      writer.create("Writing " + count + " comments for " + commentsByReview.size()
+          + " reviews", commentsByReview);
+    }
+
+    // Push.
+    try {
+      publishNotes(COMMENTS_REF);
+    } catch (Exception e) {
+      throw new GitClientException("Error pushing comments", e);
     }
   }
 
@@ -269,8 +539,7 @@ public class AppraiseGitReviewClient {
    * @return the new review's hash.
    */
   public String createReview(String reviewCommitHash, Review review) throws GitClientException {
-    // Sync to minimize the chances of non-linear merges.
-    syncCommentsAndReviews();
+    syncBeforeWrite();
 
     // Push the code under review, or the user won't be able to access the commit with the
     // notes.
@@ -291,7 +560,7 @@ public class AppraiseGitReviewClient {
 
     // Push.
     try {
-      pushCommentsAndReviews();
+      publishNotes(REVIEWS_REF);
     } catch (Exception e) {
       throw new GitClientException("Error pushing, review is " + reviewCommitHash, e);
     }
@@ -299,6 +568,41 @@ public class AppraiseGitReviewClient {
     return reviewCommitHash;
   }
 
+  /**
+   * Writes new records for many reviews at once, e.g. to re-target them after
+   * a branch rename or to close stale ones, with a single sync, notes commit
+   * and push. Reviews that would not change are skipped.
+   * @param reviewsByHash The new review records, by review commit hash.
+   * @return how many reviews were written.
+   */
+  public int writeReviews(Map<String, Review> reviewsByHash) throws GitClientException {
+    syncBeforeWrite();
+
+    Map<String, List<Review>> changed = new LinkedHashMap<>();
+    for (Map.Entry<String, Review> entry : reviewsByHash.entrySet()) {
+      if (!entry.getValue().equals(getReview(entry.getKey()))) {
+        changed.put(entry.getKey(), Collections.singletonList(entry.getValue()));
+      }
+    }
+    if (changed.isEmpty()) {
+      return 0;
+    }
+
+    // Commit.
+    try (GitNoteWriter<Review> writer =
+        GitNoteWriter.createNoteWriter(repo, author, REVIEWS_REF)) {
+      writer.create("Writing " + changed.size() + " reviews", changed);
+    }
+
+    // Push.
+    try {
+      publishNotes(REVIEWS_REF);
+    } catch (Exception e) {
+      throw new GitClientException("Error pushing reviews", e);
+    }
+    return changed.size();
+  }
+
   /**
    * Helper method that commits a new comment to the git notes.
    */
@@ -311,76 +615,309 @@ public class AppraiseGitReviewClient {
     }
   }
 
+  /**
+   * Commits a changed review and a new comment for the same review, either of
+   * which may be null. When there are both, the two notes commits are built
+   * under both refs' locks and the refs are moved together in one batch
+   * update, so that the reviews and comments notes never disagree. If another
+   * process moves one of the refs in the meantime, each ref is written on its
+   * own instead, merging as usual.
+   * @return the notes refs that changed.
+   */
+  private List<String> commitReviewAndComment(String reviewCommitHash, Review review,
+      ReviewComment comment) throws GitClientException {
+    List<String> changedRefs = new ArrayList<>();
+    if (review == null || comment == null) {
+      if (review != null) {
+        commitReviewNote(reviewCommitHash, review);
+        changedRefs.add(REVIEWS_REF);
+      }
+      if (comment != null) {
+        commitCommentNote(reviewCommitHash, comment);
+        changedRefs.add(COMMENTS_REF);
+      }
+      return changedRefs;
+    }
+
+    // We store time in seconds in the notes.
+    comment.setTimestamp(System.currentTimeMillis() / 1000);
+    comment.setAuthor(author.getEmailAddress());
+
+    // The locks are always taken in the same order, so batch writers can't deadlock.
+    RefUpdateCoordinator coordinator = RefUpdateCoordinator.forRepository(repo);
+    Lock commentsLock = coordinator.getLock(COMMENTS_REF);
+    Lock reviewsLock = coordinator.getLock(REVIEWS_REF);
+    commentsLock.lock();
+    reviewsLock.lock();
+    try (GitNoteWriter<Review> reviewWriter =
+            GitNoteWriter.createNoteWriter(repo, author, REVIEWS_REF);
+        GitNoteWriter<ReviewComment> commentWriter =
+            GitNoteWriter.createNoteWriter(repo, author, COMMENTS_REF);
+        RevWalk walk = new RevWalk(repo)) {
+      List<ReceiveCommand> commands = new ArrayList<>();
+      ReceiveCommand reviewCommand = reviewWriter.prepare("Writing review for " + reviewCommitHash,
+          Collections.singletonMap(reviewCommitHash, Collections.singletonList(review)));
+      if (reviewCommand != null) {
+        commands.add(reviewCommand);
+      }
+      ReceiveCommand commentCommand = commentWriter.prepare(
+          "Writing comment for " + reviewCommitHash,
+          Collections.singletonMap(reviewCommitHash, Collections.singletonList(comment)));
+      if (commentCommand != null) {
+        commands.add(commentCommand);
+      }
+      if (commands.isEmpty()
+          || coordinator.updateAll(commands, walk, author, "Updating review " + reviewCommitHash)) {
+        for (ReceiveCommand command : commands) {
+          changedRefs.add(command.getRefName());
+        }
+        return changedRefs;
+      }
+    } catch (IOException e) {
+      throw new GitClientException("Error writing notes for " + reviewCommitHash, e);
+    } finally {
+      reviewsLock.unlock();
+      commentsLock.unlock();
+    }
+
+    // The refs moved under us, so write each of them the usual way, merging with the new tips.
+    try (GitNoteWriter<Review> reviewWriter =
+            GitNoteWriter.createNoteWriter(repo, author, REVIEWS_REF);
+        GitNoteWriter<ReviewComment> commentWriter =
+            GitNoteWriter.createNoteWriter(repo, author, COMMENTS_REF)) {
+      reviewWriter.create("Writing review for " + reviewCommitHash,
+          Collections.singletonMap(reviewCommitHash, Collections.singletonList(review)));
+      commentWriter.create("Writing comment for " + reviewCommitHash,
+          Collections.singletonMap(reviewCommitHash, Collections.singletonList(comment)));
+    }
+    changedRefs.add(REVIEWS_REF);
+    changedRefs.add(COMMENTS_REF);
+    return changedRefs;
+  }
+
   /**
    * Pushes the local comments and reviews back to the origin.
    */
   private void pushCommentsAndReviews() throws Exception {
     try (Git git = new Git(repo)) {
-      RefSpec spec = new RefSpec(DEVTOOLS_PUSH_REFSPEC);
-      PushCommand pushCommand = git.push();
-      pushCommand.setRefSpecs(spec);
-      pushCommand.call();
+      pushNotes(git);
     }
   }
 
   /**
-   * Gets the diff entries associated with a specific review commit.
-   * The review commit is the commit hash at which the review was requested.
-   * Subsequent commits on that review can be inferred from the append-only comments.
+   * Pushes the local notes refs. The push is atomic, so that the origin takes
+   * the reviews and comments notes together or not at all, unless the origin
+   * doesn't support atomic pushes, in which case the refs are pushed one by
+   * one. JGit fails an atomic push to such an origin before sending anything,
+   * so an atomic push that fails in transport is retried as a plain one, and
+   * if that works the origin is taken not to support atomic pushes.
    */
-  public List<DiffEntry> getDiff(String requestCommitHash)
-      throws GitClientException, IOException, GitAPIException {
-    Review review = getReview(requestCommitHash);
+  private Iterable<PushResult> pushNotes(Git git) throws GitAPIException {
+    PushCommand pushCommand = git.push().setRefSpecs(new RefSpec(DEVTOOLS_PUSH_REFSPEC));
+    if (!isAtomicPushUnsupported(repo)) {
+      try {
+        return pushCommand.setAtomic(true).call();
+      } catch (TransportException e) {
+        Iterable<PushResult> results =
+            git.push().setRefSpecs(new RefSpec(DEVTOOLS_PUSH_REFSPEC)).call();
+        synchronized (atomicPushUnsupported) {
+          atomicPushUnsupported.put(repo, Boolean.TRUE);
+        }
+        return results;
+      }
+    }
+    return pushCommand.call();
+  }
+
+  private static boolean isAtomicPushUnsupported(Repository repo) {
+    synchronized (atomicPushUnsupported) {
+      return atomicPushUnsupported.containsKey(repo);
+    }
+  }
+
+  /**
+   * Syncs the notes before a write, to minimize the chances of non-linear
+   * merges. Writes that push right away always fetch, since a push on top of
+   * stale notes would be rejected. Deferred pushes merge the remote notes in
+   * if they are rejected, so they only need a fresh enough sync.
+   */
+  private void syncBeforeWrite() throws GitClientException {
+    syncCommentsAndReviews(writeBehindMillis <= 0);
+  }
 
-    // If the target ref is missing or the corresponding branch does not exist,
-    // the review is bogus.
-    if (review.getTargetRef() == null || review.getTargetRef().isEmpty()) {
-      throw new GitClientException("Review target ref not set: " + requestCommitHash);
+  /**
+   * Pushes the notes refs that a write just committed to, or hands them to the
+   * repository's {@link PushQueue} in write-behind mode.
+   */
+  private void publishNotes(String... refNames) throws Exception {
+    if (writeBehindMillis <= 0) {
+      pushCommentsAndReviews();
+      return;
+    }
+    PushQueue queue = PushQueue.forRepository(repo, writeBehindMillis);
+    for (String refName : refNames) {
+      queue.enqueue(refName, repo.getRef(refName).getObjectId(), writeBehindMillis);
     }
+  }
 
+  /**
+   * Pushes the notes commits that writes have deferred, without waiting for
+   * the end of the write-behind window.
+   */
+  public void flushPendingPushes() throws GitClientException {
+    if (PushQueue.hasJournal(repo)) {
+      PushQueue.forRepository(repo, writeBehindMillis).flush();
+    }
+  }
+
+  /**
+   * Pushes the local notes for the {@link PushQueue}. If the origin has moved
+   * on since the notes were committed, the origin notes are fetched and merged
+   * in first. This only depends on the repository, not on the client's
+   * settings, since the queue pushes with a client of its own.
+   */
+  void pushPendingNotes() throws GitClientException {
+    try {
+      if (pushNotesChecked()) {
+        return;
+      }
+    } catch (GitClientException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new GitClientException("Error pushing notes", e);
+    }
+
+    // Rejected, so merge the origin notes in, and push the merge. The merge itself is
+    // not pushed or enqueued by the sync, whatever the write-behind setting.
+    fetchAndSyncNotes(false);
+    try {
+      if (!pushNotesChecked()) {
+        throw new GitClientException("Notes push rejected after merging the origin notes");
+      }
+    } catch (GitClientException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new GitClientException("Error pushing notes", e);
+    }
+  }
+
+  /**
+   * Pushes the local notes, returning false if the origin rejected them
+   * because it has notes commits that the local refs lack.
+   */
+  private boolean pushNotesChecked() throws Exception {
     try (Git git = new Git(repo)) {
-      if (!isBranchExists(review.getTargetRef())) {
-        throw new GitClientException("Review target ref does not exist: " + requestCommitHash + ", "
-            + review.getTargetRef());
+      Iterable<PushResult> results = pushNotes(git);
+      boolean accepted = true;
+      RemoteRefUpdate failed = null;
+      for (PushResult result : results) {
+        for (RemoteRefUpdate update : result.getRemoteUpdates()) {
+          switch (update.getStatus()) {
+            case OK:
+            case UP_TO_DATE:
+              break;
+            case REJECTED_NONFASTFORWARD:
+            case REJECTED_REMOTE_CHANGED:
+              accepted = false;
+              break;
+            default:
+              failed = update;
+          }
+        }
+      }
+      // An atomic push aborts the other refs when one is rejected, which merging fixes too.
+      if (accepted && failed != null) {
+        throw new GitClientException("Failed to push " + failed.getRemoteName() + ": "
+            + failed.getStatus() + " " + failed.getMessage());
       }
+      return accepted;
+    }
+  }
 
-      if (review.getReviewRef() == null || review.getReviewRef().isEmpty()) {
-        // If there is no review ref, then show the diff from the single commit.
-        RevCommit revCommit = resolveRevCommit(requestCommitHash);
-        return calculateCommitDiffs(git, resolveParentRevCommit(revCommit), revCommit);
-      } else if (isBranchExists(review.getReviewRef())
-          && !areAncestorDescendent(review.getReviewRef(), review.getTargetRef())) {
-        // If the review ref branch exists and is not already submitted,
-        // then show the diff between review ref and target ref.
-        return calculateBranchDiffs(git, review.getTargetRef(), review.getReviewRef());
-      } else {
-        // If the review ref points to a non-existent branch, the review is over, so read the
-        // comments and diff between the parent and the "last" (chronologically) one.
-        Map<String, ReviewComment> comments = listCommentsForReview(git, requestCommitHash);
-        RevCommit revCommit = resolveRevCommit(requestCommitHash);
-        RevCommit parent = resolveParentRevCommit(revCommit);
-        RevCommit last = findLastCommitInComments(comments.values(), revCommit);
-        return calculateCommitDiffs(git, parent, last);
+  /**
+   * Merges the small packs that writing notes with appraise.packNotes set has
+   * left into one pack, once there are more of them than the appraise.maxPacks
+   * git config value allows, or 50. Only those packs are rewritten, not the
+   * repository's other packs. Does nothing unless
+   * appraise.consolidateNotesPacks is set too, leaving the notes packs to the
+   * user's gc.
+   * @return whether the notes packs were consolidated.
+   */
+  public boolean consolidatePacks() throws GitClientException {
+    Config config = repo.getConfig();
+    if (!config.getBoolean(CONFIG_SECTION, CONFIG_PACK_NOTES, false)
+        || !config.getBoolean(CONFIG_SECTION, CONFIG_CONSOLIDATE_NOTES_PACKS, false)) {
+      return false;
+    }
+    int maxPacks = config.getInt(CONFIG_SECTION, CONFIG_MAX_PACKS, DEFAULT_MAX_PACKS);
+    try {
+      if (PackedObjectInserter.countNotesPacks(repo) <= maxPacks) {
+        return false;
       }
+      return PackedObjectInserter.consolidateNotesPacks(repo);
+    } catch (IOException e) {
+      throw new GitClientException("Error consolidating notes packs in " + repo.getDirectory(), e);
+    }
+  }
+
+  /**
+   * Gets the diff entries associated with a specific review commit.
+   * The review commit is the commit hash at which the review was requested.
+   * Subsequent commits on that review can be inferred from the append-only comments.
+   */
+  public List<DiffEntry> getDiff(String requestCommitHash)
+      throws GitClientException, IOException, GitAPIException {
+    ReviewSnapshot snapshot = getReviewSnapshot(requestCommitHash);
+    if (snapshot == null) {
+      throw new GitClientException("Review not found: " + requestCommitHash);
     }
+    return snapshot.getDiffs();
   }
 
   /**
    * Fetches review and comment git notes and updates the local refs, performing
-   * merges if necessary.
+   * merges if necessary. This is skipped if the repository was synced within
+   * the freshness window, and concurrent calls share a single sync.
    */
   public void syncCommentsAndReviews() throws GitClientException {
+    syncCommentsAndReviews(false);
+  }
+
+  /**
+   * Fetches review and comment git notes and updates the local refs, performing
+   * merges if necessary.
+   * @param force Whether to sync even if the repository was synced within the
+   *     freshness window, e.g. for an explicit refresh.
+   */
+  public void syncCommentsAndReviews(boolean force) throws GitClientException {
+    NotesSyncCoordinator.forRepository(repo).sync(new Callable<Void>() {
+      @Override
+      public Void call() throws GitClientException {
+        fetchAndSyncNotes(true);
+        return null;
+      }
+    }, syncFreshnessMillis, force);
+  }
+
+  /**
+   * Does the actual notes sync, see {@link #syncCommentsAndReviews(boolean)}.
+   * @param push Whether to push, or enqueue, the local notes commits that the
+   *     origin lacks.
+   */
+  private void fetchAndSyncNotes(boolean push) throws GitClientException {
     RevWalk revWalk = null;
     try (Git git = new Git(repo)) {
       revWalk = new RevWalk(repo);
 
-      // Fetch the latest.
-      RefSpec spec = new RefSpec(DEVTOOLS_PULL_REFSPEC);
-      git.fetch().setRefSpecs(spec).call();
+      // Fetch the latest, unless the remote notes are the ones we already have.
+      if (!isRemoteNotesUnchanged(git)) {
+        RefSpec spec = new RefSpec(DEVTOOLS_PULL_REFSPEC);
+        git.fetch().setRefSpecs(spec).call();
+      }
 
-      syncNotes(revWalk, COMMENTS_REF, COMMENTS_ORIGIN_REF);
+      syncNotes(revWalk, COMMENTS_REF, COMMENTS_ORIGIN_REF, push);
       revWalk.reset();
-      syncNotes(revWalk, REVIEWS_REF, REVIEWS_ORIGIN_REF);
+      syncNotes(revWalk, REVIEWS_REF, REVIEWS_ORIGIN_REF, push);
     } catch (Exception e) {
       throw new GitClientException("Error syncing notes", e);
     } finally {
@@ -390,28 +927,96 @@ public class AppraiseGitReviewClient {
     }
   }
 
+  /**
+   * Checks the ids the remote advertises for the reviews and comments notes
+   * against our origin tracking refs. This only costs the ref advertisement,
+   * rather than a full fetch negotiation.
+   */
+  private boolean isRemoteNotesUnchanged(Git git) throws Exception {
+    Map<String, Ref> remoteRefs = new HashMap<>();
+    for (Ref ref : git.lsRemote().call()) {
+      remoteRefs.put(ref.getName(), ref);
+    }
+    return isSameId(remoteRefs.get(REVIEWS_REF), repo.getRef(REVIEWS_ORIGIN_REF))
+        && isSameId(remoteRefs.get(COMMENTS_REF), repo.getRef(COMMENTS_ORIGIN_REF));
+  }
+
+  private static boolean isSameId(Ref first, Ref second) {
+    if (first == null || second == null) {
+      return first == second;
+    }
+    return first.getObjectId().equals(second.getObjectId());
+  }
+
   /**
    * Helper method that syncs the notes between the given ref names.
    */
-  private void syncNotes(RevWalk revWalk, String localRefName, String originRefName)
-      throws Exception {
+  private void syncNotes(RevWalk revWalk, String localRefName, String originRefName,
+      boolean push) throws Exception {
     Ref originRef = repo.getRef(originRefName);
     if (originRef == null) {
       // Most likely nobody has ever pushed anything to the devtools notes in this repo.
       return;
     }
+    if (isSameId(originRef, repo.getRef(localRefName))) {
+      // Already in sync, so there is nothing to merge or push.
+      return;
+    }
+
+    // Writers in this process wait while the local ref is brought up to date, but not
+    // while it is pushed.
+    boolean needPush;
+    Lock lock = RefUpdateCoordinator.forRepository(repo).getLock(localRefName);
+    lock.lock();
+    try {
+      needPush = syncLocalRef(revWalk, localRefName, originRef);
+    } finally {
+      lock.unlock();
+    }
+
+    if (!needPush || !push) {
+      return;
+    }
+    if (writeBehindMillis > 0) {
+      // Leave the push to the queue, so that syncs between writes do not push the deferred
+      // commits early. A pending push covers the local ref whether or not it merged, since
+      // it pushes the ref tips; otherwise the local commits get a push of their own.
+      PushQueue queue = PushQueue.forRepository(repo, writeBehindMillis);
+      if (!queue.hasPending()) {
+        queue.enqueue(localRefName, repo.getRef(localRefName).getObjectId(), writeBehindMillis);
+      }
+      return;
+    }
+    // Note that this pushes both comments and notes. Since we are typically synchronizing
+    // them in close succession, it's expected that this push will happen the first time,
+    // and the next time the commits will be the same in most cases.
+    try {
+      pushCommentsAndReviews();
+    } catch (Exception e) {
+      throw new GitClientException("Error pushing notes for " + localRefName, e);
+    }
+  }
 
+  /**
+   * Brings the local notes ref up to date with the origin one, which must be
+   * done while holding the local ref's lock.
+   * @return whether the local ref now has commits that the origin lacks.
+   */
+  private boolean syncLocalRef(RevWalk revWalk, String localRefName, Ref originRef)
+      throws Exception {
+    RefUpdateCoordinator coordinator = RefUpdateCoordinator.forRepository(repo);
     RevCommit originCommit = revWalk.parseCommit(originRef.getObjectId());
 
     Ref localRef = repo.getRef(localRefName);
     if (localRef == null) {
       // Update the local ref to the origin commit. This happens the first time a new repo is set
       // up.
-      Result result = JgitUtils.updateRef(repo, originCommit, null, localRefName).update();
-      if (!result.equals(Result.FAST_FORWARD)) {
+      Result result =
+          coordinator.update(JgitUtils.updateRef(repo, originCommit, null, localRefName));
+      if (!result.equals(Result.NEW) && !result.equals(Result.FAST_FORWARD)) {
         throw new GitClientException("Invalid result initializing the local ref: " + result);
       }
-      return;
+      return false;
     }
 
     RevCommit localCommit = revWalk.parseCommit(localRef.getObjectId());
@@ -419,91 +1024,64 @@ public class AppraiseGitReviewClient {
 
     // If the commits are the same, there is nothing to do.
     if (localCommit.equals(originCommit)) {
-      return;
+      return false;
     }
 
     if (originCommit.equals(baseCommit)) {
       // If the merge base is the same as the origin, we should push our changes to the origin,
       // because we have local ones.
-      // Note that this pushes both comments and notes. Since we are typically synchronizing
-      // them in close succession, it's expected that this push will happen the first time,
-      // and the next time the commits will be the same in most cases.
-      pushCommentsAndReviews();
+      return true;
     } else if (localCommit.equals(baseCommit)) {
       // If the merge base is the same as the local, we should advance our ref in a fast-forward.
-      Result result = JgitUtils.updateRef(repo, originCommit, localCommit, localRefName).update();
+      Result result =
+          coordinator.update(JgitUtils.updateRef(repo, originCommit, localCommit, localRefName));
       if (!result.equals(Result.FAST_FORWARD) && !result.equals(Result.NO_CHANGE)) {
         throw new GitClientException("Invalid result advancing the local ref: " + result);
       }
+      return false;
     } else {
       // If the merge base is not equal to either, we need to do a merge.
-      mergeNotesAndPush(revWalk, localRefName, baseCommit, localCommit, originCommit);
+      mergeNotes(revWalk, localRefName, baseCommit, localCommit, originCommit);
+      return true;
     }
   }
 
   /**
    * Merges the notes from local and origin commits with the given merge base.
    */
-  private void mergeNotesAndPush(RevWalk revWalk, String refName, RevCommit baseCommit,
+  private void mergeNotes(RevWalk revWalk, String refName, RevCommit baseCommit,
       RevCommit localCommit, RevCommit originCommit) throws GitClientException {
-    int remainingLockFailureCalls = JgitUtils.MAX_LOCK_FAILURE_CALLS;
-
-    // Merge and commit.
-    while (true) {
-      try {
-        NoteMap theirNoteMap = NoteMap.read(revWalk.getObjectReader(), originCommit);
-        NoteMap ourNoteMap = NoteMap.read(revWalk.getObjectReader(), localCommit);
-        NoteMap baseNoteMap;
-        if (baseCommit != null) {
-          baseNoteMap = NoteMap.read(revWalk.getObjectReader(), baseCommit);
-        } else {
-          baseNoteMap = NoteMap.newEmptyMap();
-        }
-
-        NoteMapMerger merger =
-            new NoteMapMerger(repo, new DefaultNoteMerger(), MergeStrategy.RESOLVE);
-        NoteMap merged = merger.merge(baseNoteMap, ourNoteMap, theirNoteMap);
-        try (ObjectInserter inserter = repo.newObjectInserter()) {
-          RevCommit mergeCommit = createNotesCommit(
-              merged, inserter, revWalk, "Merged note commits\n", localCommit, originCommit);
-
-          RefUpdate update = JgitUtils.updateRef(repo, mergeCommit, localCommit, refName);
-          Result result = update.update();
-          if (result == Result.LOCK_FAILURE) {
-            if (--remainingLockFailureCalls > 0) {
-              Thread.sleep(JgitUtils.SLEEP_ON_LOCK_FAILURE_MS);
-            } else {
-              throw new GitClientException("Failed to lock the ref: " + refName);
-            }
-          } else if (result == Result.REJECTED) {
-            throw new GitClientException("Rejected update to " + refName + ", this is unexpected");
-          } else if (result == Result.IO_FAILURE) {
-            throw new GitClientException("I/O failure merging notes");
-          } else {
-            // OK.
-            break;
-          }
-        }
-      } catch (Exception e) {
-        throw new GitClientException("Error merging notes commits", e);
-      }
+    Result result;
+    try (ObjectInserter inserter = PackedObjectInserter.forNotes(repo);
+        ObjectReader reader = repo.newObjectReader()) {
+      ObjectId mergedTree = NotesTreeMerger.merge(
+          repo, reader, inserter, baseCommit, localCommit, originCommit);
+      RevCommit mergeCommit = createNotesCommit(
+          mergedTree, inserter, revWalk, "Merged note commits\n", localCommit, originCommit);
+
+      result = RefUpdateCoordinator.forRepository(repo).update(
+          JgitUtils.updateRef(repo, mergeCommit, localCommit, refName));
+    } catch (Exception e) {
+      throw new GitClientException("Error merging notes commits", e);
     }
 
-    // And push.
-    try {
-      pushCommentsAndReviews();
-    } catch (Exception e) {
-      throw new GitClientException("Error pushing merge commit", e);
+    if (result == Result.LOCK_FAILURE) {
+      throw new GitClientException("Failed to lock the ref: " + refName);
+    } else if (result == Result.REJECTED) {
+      throw new GitClientException(
+          "Rejected update to " + refName + ", it was updated by another process");
+    } else if (result == Result.IO_FAILURE) {
+      throw new GitClientException("I/O failure merging notes");
     }
   }
 
   /**
    * Creates a merged notes commit.
    */
-  private RevCommit createNotesCommit(NoteMap map, ObjectInserter inserter, RevWalk revWalk,
-      String message, RevCommit... parents) throws IOException {
+  private RevCommit createNotesCommit(ObjectId treeId, ObjectInserter inserter,
+      RevWalk revWalk, String message, RevCommit... parents) throws IOException {
     CommitBuilder commitBuilder = new CommitBuilder();
-    commitBuilder.setTreeId(map.writeTree(inserter));
+    commitBuilder.setTreeId(treeId);
     commitBuilder.setAuthor(author);
     commitBuilder.setCommitter(author);
     if (parents.length > 0) {
@@ -548,23 +1126,11 @@ public class AppraiseGitReviewClient {
     }
   }
 
-  /**
-   * Resolves the (first) parent commit.
-   */
-  private RevCommit resolveParentRevCommit(RevCommit revCommit)
-      throws MissingObjectException, IncorrectObjectTypeException, IOException {
-    RevCommit parent = null;
-    try (RevWalk walker = new RevWalk(repo)) {
-      parent = walker.parseCommit(revCommit.getParents()[0].getId());
-    }
-    return parent;
-  }
-
   /**
    * Gets the chronologically-last commit from a set of review comments.
    */
   private RevCommit findLastCommitInComments(
-      Collection<ReviewComment> collection, RevCommit defaultCommit)
+      RevWalk walk, Collection<ReviewComment> collection, RevCommit defaultCommit)
       throws MissingObjectException, IncorrectObjectTypeException, IOException {
     RevCommit lastCommit = defaultCommit;
     for (ReviewComment comment : collection) {
@@ -572,8 +1138,12 @@ public class AppraiseGitReviewClient {
           || comment.getLocation().getCommit().isEmpty()) {
         continue;
       }
-      RevCommit currentCommit = resolveRevCommit(comment.getLocation().getCommit());
-      if (currentCommit != null && currentCommit.getCommitTime() > lastCommit.getCommitTime()) {
+      ObjectId commitId = repo.resolve(comment.getLocation().getCommit());
+      if (commitId == null) {
+        continue;
+      }
+      RevCommit currentCommit = walk.parseCommit(commitId);
+      if (currentCommit.getCommitTime() > lastCommit.getCommitTime()) {
         lastCommit = currentCommit;
       }
     }
@@ -586,40 +1156,42 @@ public class AppraiseGitReviewClient {
    */
   public Map<String, ReviewComment> listCommentsForReview(String requestCommitHash)
       throws GitClientException {
-    try (Git git = new Git(repo)) {
-      return listCommentsForReview(git, requestCommitHash);
-    }
+    return listCommentsForReviews(Collections.singleton(requestCommitHash))
+        .get(requestCommitHash);
   }
 
   /**
-   * Gets all the comments for a specific review hash, by comment id.
-   * The comment id is conventionally the SHA-1 hash of its JSON string.
+   * Gets all the comments for each of the given review hashes, by review hash
+   * and then by comment id. This syncs once and reads the comments notes once,
+   * however many reviews are asked for.
    */
-  private Map<String, ReviewComment> listCommentsForReview(Git git, String requestCommitHash)
-      throws GitClientException {
+  public Map<String, Map<String, ReviewComment>> listCommentsForReviews(
+      Collection<String> requestCommitHashes) throws GitClientException {
     // Get the most up-to-date list of comments.
-    syncCommentsAndReviews();
+    if (syncOnRead) {
+      syncCommentsAndReviews();
+    }
 
-    Map<String, ReviewComment> comments = new LinkedHashMap<>();
-    try {
-      String noteDataStr = readOneNote(git, COMMENTS_REF, requestCommitHash);
-      if (noteDataStr != null) {
-        for (String commentStr : noteDataStr.split("\n")) {
-          try {
-            String commentId = DigestUtils.shaHex(commentStr);
-            ReviewComment comment = new Gson().fromJson(commentStr, ReviewComment.class);
-            if (comment != null) {
-              comments.put(commentId, comment);
-            }
-          } catch (JsonSyntaxException jse) {
-            logger.warning("Failed to parse comment " + noteDataStr);
+    Map<String, Map<String, ReviewComment>> commentsByReview = new LinkedHashMap<>();
+    try (ObjectReader reader = repo.newObjectReader()) {
+      Ref notesRef = repo.getRef(COMMENTS_REF);
+      NoteMapCache cache = NoteMapCache.forRepository(repo);
+
+      for (String requestCommitHash : requestCommitHashes) {
+        Map<String, ReviewComment> comments = new LinkedHashMap<>();
+        ObjectId reviewCommitId = repo.resolve(requestCommitHash);
+        if (notesRef != null && reviewCommitId != null) {
+          ObjectId noteData = cache.getNoteData(repo, notesRef.getObjectId(), reviewCommitId);
+          if (noteData != null) {
+            NoteRecordReader.readComments(reader.open(noteData), comments);
           }
         }
+        commentsByReview.put(requestCommitHash, comments);
       }
     } catch (Exception e) {
       throw new GitClientException(e);
     }
-    return comments;
+    return commentsByReview;
   }
 
   private AbstractTreeIterator prepareTreeParser(String ref)
@@ -632,14 +1204,6 @@ public class AppraiseGitReviewClient {
     }
   }
 
-  private AbstractTreeIterator prepareTreeParser(RevCommit commit)
-      throws IOException, MissingObjectException, IncorrectObjectTypeException {
-    // from the commit we can build the tree which allows us to construct the TreeParser
-    try (RevWalk walk = new RevWalk(repo)) {
-      return prepareTreeParserHelper(walk, commit);
-    }
-  }
-
   private AbstractTreeIterator prepareTreeParserHelper(RevWalk walk, RevCommit commit)
       throws IOException, MissingObjectException, IncorrectObjectTypeException {
     RevTree tree = walk.parseTree(commit.getTree().getId());
@@ -650,14 +1214,6 @@ public class AppraiseGitReviewClient {
     return oldTreeParser;
   }
 
-  private RevCommit resolveRevCommit(String commitHash)
-      throws MissingObjectException, IncorrectObjectTypeException, IOException {
-    ObjectId ref = repo.resolve(commitHash);
-    try (RevWalk walker = new RevWalk(repo)) {
-      return walker.parseCommit(ref);
-    }
-  }
-
   /**
    * Gets the diff between heads on two branches.
    * See
@@ -683,34 +1239,6 @@ public class AppraiseGitReviewClient {
     }
   }
 
-  /**
-   * Gets the diff between two commits.
-   */
-  private List<DiffEntry> calculateCommitDiffs(Git git, RevCommit first, RevCommit last)
-      throws IOException, GitAPIException {
-    AbstractTreeIterator oldTreeParser = prepareTreeParser(first);
-    AbstractTreeIterator newTreeParser = prepareTreeParser(last);
-    return git.diff().setOldTree(oldTreeParser).setNewTree(newTreeParser).call();
-  }
-
-  /**
-   * Returns whether or not a specific named branch exists in the repo.
-   */
-  private boolean isBranchExists(String ref) throws IOException {
-    return (repo.getRef(ref) != null);
-  }
-
-  /**
-   * Utility method that converts a note to a string (assuming it's UTF-8).
-   */
-  private String noteToString(Repository repo, Note note)
-      throws MissingObjectException, IOException, UnsupportedEncodingException {
-    ObjectLoader loader = repo.open(note.getData());
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    loader.copyTo(baos);
-    return new String(baos.toByteArray(), "UTF-8");
-  }
-
   /**
    * Confirms that the user is on a ref that is valid for creating a new review.
    */
@@ -730,29 +1258,23 @@ public class AppraiseGitReviewClient {
    */
   public String updateReviewWithComment(String reviewCommitHash, Review review, String newComment)
       throws GitClientException {
-    // Sync to minimize the chances of non-linear merges.
-    syncCommentsAndReviews();
+    syncBeforeWrite();
 
-    boolean needPush = false;
     Review existingReview = getReview(reviewCommitHash);
-    if (!review.equals(existingReview)) {
-      // Need to update the review.
-      commitReviewNote(reviewCommitHash, review);
-      needPush = true;
-    }
+    Review changedReview = review.equals(existingReview) ? null : review;
 
+    ReviewComment comment = null;
     if (newComment != null && !newComment.isEmpty()) {
-      // Write the new comment.
-      ReviewComment comment = new ReviewComment();
+      comment = new ReviewComment();
       comment.setDescription(newComment);
-      commitCommentNote(reviewCommitHash, comment);
-      needPush = true;
     }
 
+    List<String> changedRefs = commitReviewAndComment(reviewCommitHash, changedReview, comment);
+
     // Push.
-    if (needPush) {
+    if (!changedRefs.isEmpty()) {
       try {
-        pushCommentsAndReviews();
+        publishNotes(changedRefs.toArray(new String[changedRefs.size()]));
       } catch (Exception e) {
         throw new GitClientException("Error pushing, review is " + reviewCommitHash, e);
       }
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Google and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Scott McMaster - initial implementation
+ *******************************************************************************/
+package com.google.appraise.eclipse.core.client.git;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.notes.Note;
+import org.eclipse.jgit.notes.NoteMerger;
+import org.eclipse.jgit.util.TemporaryBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Merges Appraise notes, which are sets of JSON records, one per line. Unlike
+ * Jgit's {@code DefaultNoteMerger}, which concatenates the two notes, the
+ * merged note has each distinct line only once, so repeated merges don't pile
+ * up copies of the same records. Lines are told apart by their SHA-1 hash,
+ * the same way comment ids are computed, and keep their order: our lines
+ * first, then the lines that only they have.
+ */
+class AppraiseNoteMerger implements NoteMerger {
+  @Override
+  public Note merge(Note base, Note ours, Note theirs, ObjectReader reader,
+      ObjectInserter inserter) throws IOException {
+    if (ours == null) {
+      return theirs;
+    }
+    if (theirs == null) {
+      return ours;
+    }
+    if (ours.getData().equals(theirs.getData())) {
+      return ours;
+    }
+    return new Note(ours, union(reader, inserter, null, ours.getData(), theirs.getData()));
+  }
+
+  /**
+   * Writes a note blob with the distinct lines of the given leading records
+   * and note blobs, in that order. The blobs are streamed, and the merged note
+   * only spills to a temporary file if it is large.
+   * @param leading Lines to put first, or null.
+   */
+  static ObjectId union(ObjectReader reader, ObjectInserter inserter, byte[] leading,
+      ObjectId... blobs) throws IOException {
+    TemporaryBuffer buffer = new TemporaryBuffer.LocalFile(null);
+    try {
+      LineUnion lines = new LineUnion(buffer);
+      if (leading != null) {
+        lines.addAll(leading);
+      }
+      for (ObjectId blob : blobs) {
+        if (blob != null) {
+          NoteRecordReader.forEachLine(reader.open(blob, Constants.OBJ_BLOB), lines);
+        }
+      }
+      buffer.close();
+      try (InputStream in = buffer.openInputStream()) {
+        return inserter.insert(Constants.OBJ_BLOB, buffer.length(), in);
+      }
+    } finally {
+      buffer.destroy();
+    }
+  }
+
+  /**
+   * Writes out each line the first time it is seen.
+   */
+  private static class LineUnion extends NoteRecordReader.LineVisitor {
+    private final TemporaryBuffer out;
+    private final Set<String> seen = new HashSet<>();
+
+    LineUnion(TemporaryBuffer out) {
+      this.out = out;
+    }
+
+    void addAll(byte[] data) throws IOException {
+      int start = 0;
+      for (int i = 0; i < data.length; i++) {
+        if (data[i] == '\n') {
+          visit(data, start, i, start);
+          start = i + 1;
+        }
+      }
+      if (start < data.length) {
+        visit(data, start, data.length, start);
+      }
+    }
+
+    @Override
+    void visit(byte[] data, int start, int end, int offset) throws IOException {
+      if (start == end) {
+        return;
+      }
+      if (seen.add(NoteRecordReader.recordId(data, start, end))) {
+        out.write(data, start, end - start);
+        out.write('\n');
+      }
+    }
+  }
+}
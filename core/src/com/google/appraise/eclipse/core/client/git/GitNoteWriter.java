@@ -16,7 +16,6 @@ import org.eclipse.jgit.errors.CorruptObjectException;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
 import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.CommitBuilder;
-import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.ObjectReader;
@@ -25,17 +24,21 @@ import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.RefUpdate.Result;
 import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.notes.DefaultNoteMerger;
-import org.eclipse.jgit.notes.Note;
 import org.eclipse.jgit.notes.NoteMap;
-import org.eclipse.jgit.notes.NoteMapMerger;
-import org.eclipse.jgit.notes.NoteMerger;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,6 +54,8 @@ import java.util.logging.Logger;
 public class GitNoteWriter<T> implements Closeable {
   private static final Logger logger = Logger.getLogger(GitNoteWriter.class.getName());
 
+  private static final Gson GSON = new Gson();
+
   /**
    * The ref where the notes are to be written.
    */
@@ -64,13 +69,15 @@ public class GitNoteWriter<T> implements Closeable {
 
   // The base commit that we need to merge into.
   private RevCommit baseCommit;
-  private NoteMap base;
 
   // The thing we need to merge.
   private RevCommit oursCommit;
   private NoteMap ours;
 
-  private List<T> noteRecords;
+  /**
+   * The records to write, by the commit they are attached to.
+   */
+  private Map<RevCommit, List<T>> noteRecords;
 
   /**
    * Who is writing the notes out, which is assumed to be the same person making
@@ -79,9 +86,10 @@ public class GitNoteWriter<T> implements Closeable {
   private PersonIdent author;
 
   /**
-   * The commit that we want to attach to.
+   * The review commit that {@link #create(String, List)} attaches to, or null
+   * if the writer was created for writing to many reviews at once.
    */
-  private final RevCommit reviewCommit;
+  private final String reviewCommitHash;
 
   /**
    * Creates a writer to write comments to a given review.
@@ -91,6 +99,15 @@ public class GitNoteWriter<T> implements Closeable {
     return new GitNoteWriter<T>(reviewCommitHash, db, ref, author);
   }
 
+  /**
+   * Creates a writer to write notes to any number of reviews in a single
+   * notes commit; see {@link #create(String, Map)}.
+   */
+  public static <T> GitNoteWriter<T> createNoteWriter(
+      final Repository db, PersonIdent author, String ref) {
+    return new GitNoteWriter<T>(null, db, ref, author);
+  }
+
   /**
    * Private ctor. Use the static factory methods.
    */
@@ -98,86 +115,166 @@ public class GitNoteWriter<T> implements Closeable {
     this.ref = ref;
     this.repo = repo;
     this.author = author;
+    this.reviewCommitHash = reviewHash;
 
     revWalk = new RevWalk(repo);
-    inserter = repo.newObjectInserter();
+    inserter = PackedObjectInserter.forNotes(repo);
     reader = repo.newObjectReader();
+  }
 
+  /**
+   * Creates the given notes in the pre-configured review.
+   */
+  public void create(String message, List<T> noteRecords) {
+    if (reviewCommitHash == null) {
+      throw new IllegalStateException("No review commit to attach the notes to");
+    }
     try {
-      ObjectId reviewRefObjId = repo.resolve(reviewHash);
-      this.reviewCommit = revWalk.parseCommit(reviewRefObjId);
-    } catch (Exception e) {
-      logger.log(Level.SEVERE, "Failed to init note writer for commit " + reviewHash, e);
-      throw new RuntimeException(e);
+      create(message, Collections.singletonMap(reviewCommitHash, noteRecords));
+    } catch (GitClientException e) {
+      logger.log(Level.SEVERE, "Failed to write notes for commit " + reviewCommitHash, e);
     }
   }
 
   /**
-   * Creates the given notes in the pre-configured review.
+   * Creates the given notes, keyed by review commit hash, in a single notes
+   * commit: the notes map is loaded once, each review's note blob is written
+   * once with all its new records, and the ref is updated once. Unlike
+   * {@link #create(String, List)}, failures are thrown, since a batch is not
+   * worth dropping silently.
    */
-  public void create(String message, List<T> noteRecords) {
+  public void create(String message, Map<String, List<T>> noteRecordsByReview)
+      throws GitClientException {
     try {
-      this.noteRecords = noteRecords;
-      loadBase();
-      applyNotes(message);
-      updateRef();
+      // Other writers in this process wait from reading the ref until it is updated, so
+      // they build on each other's commits rather than racing for the ref.
+      Lock lock = RefUpdateCoordinator.forRepository(repo).getLock(ref);
+      lock.lock();
+      try {
+        if (buildCommit(message, noteRecordsByReview)) {
+          updateRef();
+        }
+      } finally {
+        lock.unlock();
+      }
     } catch (Exception e) {
-      logger.log(Level.SEVERE,
-          "Failed to write notes for commit " + this.reviewCommit.getId(), e);
+      throw new GitClientException(
+          "Failed to write notes for " + noteRecordsByReview.size() + " reviews", e);
     }
   }
 
+  /**
+   * Builds the notes commit for the given records on top of the ref, like
+   * {@link #create(String, Map)}, but leaves updating the ref to the caller,
+   * so that it can be updated together with other refs. The caller must hold
+   * the ref's {@link RefUpdateCoordinator} lock until the ref is updated.
+   * @return the command that moves the ref to the new notes commit, or null
+   *     if the records don't change the notes.
+   */
+  ReceiveCommand prepare(String message, Map<String, List<T>> noteRecordsByReview)
+      throws IOException {
+    if (!buildCommit(message, noteRecordsByReview)) {
+      return null;
+    }
+    ObjectId oldId = (baseCommit != null) ? baseCommit.getId() : ObjectId.zeroId();
+    return new ReceiveCommand(oldId, oursCommit.getId(), ref);
+  }
+
+  /**
+   * Loads the ref's notes and commits the given records on top of them.
+   * @return whether the new commit changes the notes.
+   */
+  private boolean buildCommit(String message, Map<String, List<T>> noteRecordsByReview)
+      throws IOException {
+    Map<RevCommit, List<T>> records = new LinkedHashMap<>();
+    for (Map.Entry<String, List<T>> entry : noteRecordsByReview.entrySet()) {
+      RevCommit reviewCommit = parseReviewCommit(entry.getKey());
+      List<T> reviewRecords = records.get(reviewCommit);
+      if (reviewRecords == null) {
+        reviewRecords = new ArrayList<>();
+        records.put(reviewCommit, reviewRecords);
+      }
+      reviewRecords.addAll(entry.getValue());
+    }
+    this.noteRecords = records;
+
+    loadBase();
+    applyNotes(message);
+    // If the trees are identical, there is no change in the notes. Avoid saving this
+    // commit as it has no new information.
+    return baseCommit == null || !oursCommit.getTree().equals(baseCommit.getTree());
+  }
+
+  private RevCommit parseReviewCommit(String reviewHash) throws IOException {
+    ObjectId reviewRefObjId = repo.resolve(reviewHash);
+    if (reviewRefObjId == null) {
+      throw new MissingObjectException(ObjectId.zeroId(), reviewHash);
+    }
+    return revWalk.parseCommit(reviewRefObjId);
+  }
+
   private void loadBase() throws IOException {
     Ref notesBranch = repo.getRef(ref);
     if (notesBranch != null) {
       baseCommit = revWalk.parseCommit(notesBranch.getObjectId());
-      base = NoteMap.read(revWalk.getObjectReader(), baseCommit);
     }
     if (baseCommit != null) {
-      ours = NoteMap.read(repo.newObjectReader(), baseCommit);
+      // Ours gets modified, so it is read fresh rather than shared from the cache.
+      ours = NoteMap.read(reader, baseCommit);
     } else {
       ours = NoteMap.newEmptyMap();
     }
   }
 
   private void applyNotes(String message) throws IOException {
-    for (T c : noteRecords) {
-      add(c);
+    for (Map.Entry<RevCommit, List<T>> entry : noteRecords.entrySet()) {
+      if (!entry.getValue().isEmpty()) {
+        add(entry.getKey(), entry.getValue());
+      }
     }
     commit(message.toString());
   }
 
   private void commit(String message) throws IOException {
     if (baseCommit != null) {
-      oursCommit = createCommit(ours, author, message, baseCommit);
+      oursCommit = createCommit(ours.writeTree(inserter), author, message, baseCommit);
     } else {
-      oursCommit = createCommit(ours, author, message);
+      oursCommit = createCommit(ours.writeTree(inserter), author, message);
     }
   }
 
-  private void add(T noteRecord)
+  /**
+   * Writes the note blob of the given review once, with the new records
+   * followed by the existing note, less any lines it already has. The newest
+   * record goes first, which is the order that merging the records in one at
+   * a time used to produce.
+   */
+  private void add(RevCommit reviewCommit, List<T> records)
       throws MissingObjectException, IncorrectObjectTypeException, IOException, RuntimeException {
-    ObjectId noteContent = createNoteContent(noteRecord);
-    if (ours.contains(reviewCommit)) {
-      // merge the existing and the new note as if they are both new
-      // means: base == null
-      // there is not really a common ancestry for these two note revisions
-      // use the same NoteMerger that is used from the NoteMapMerger
-      NoteMerger noteMerger = new DefaultNoteMerger();
-      Note newNote = new Note(reviewCommit, noteContent);
-      noteContent =
-          noteMerger.merge(null, newNote, ours.getNote(reviewCommit), reader, inserter).getData();
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    for (int i = records.size() - 1; i >= 0; i--) {
+      content.write(createNoteContent(reviewCommit, records.get(i)));
     }
-    ours.set(reviewCommit, noteContent);
+    ours.set(reviewCommit, AppraiseNoteMerger.union(
+        reader, inserter, content.toByteArray(), ours.get(reviewCommit)));
   }
 
-  private ObjectId createNoteContent(T noteRecord) throws RuntimeException {
+  /**
+   * Gets the id that the given record has once it is written, which is the
+   * SHA-1 hash of its JSON line; see {@link NoteRecordReader#recordId}.
+   */
+  static String recordId(Object noteRecord) {
+    byte[] json = GSON.toJson(noteRecord).getBytes(StandardCharsets.UTF_8);
+    return NoteRecordReader.recordId(json, 0, json.length);
+  }
+
+  private byte[] createNoteContent(RevCommit reviewCommit, T noteRecord)
+      throws RuntimeException {
     try {
-      return inserter.insert(
-          Constants.OBJ_BLOB, (new Gson().toJson(noteRecord) + '\n').getBytes("UTF-8"));
+      return (GSON.toJson(noteRecord) + '\n').getBytes("UTF-8");
     } catch (Exception e) {
       logger.log(Level.SEVERE,
-          "Failed create note content for commit " + this.reviewCommit.getId(), e);
+          "Failed create note content for commit " + reviewCommit.getId(), e);
       throw new RuntimeException(e);
     }
   }
@@ -185,34 +282,28 @@ public class GitNoteWriter<T> implements Closeable {
   private void updateRef() throws IOException, InterruptedException, RuntimeException,
                                   MissingObjectException, IncorrectObjectTypeException,
                                   CorruptObjectException {
-    if (baseCommit != null && oursCommit.getTree().equals(baseCommit.getTree())) {
-      // If the trees are identical, there is no change in the notes.
-      // Avoid saving this commit as it has no new information.
-      return;
-    }
-
-    int remainingLockFailureCalls = JgitUtils.MAX_LOCK_FAILURE_CALLS;
+    RefUpdateCoordinator coordinator = RefUpdateCoordinator.forRepository(repo);
+    int remainingMerges = JgitUtils.MAX_LOCK_FAILURE_CALLS;
     RefUpdate refUpdate = JgitUtils.updateRef(repo, oursCommit, baseCommit, ref);
 
     for (;;) {
-      Result result = refUpdate.update();
+      Result result = coordinator.update(refUpdate);
 
       if (result == Result.LOCK_FAILURE) {
-        if (--remainingLockFailureCalls > 0) {
-          Thread.sleep(JgitUtils.SLEEP_ON_LOCK_FAILURE_MS);
-        } else {
-          throw new RuntimeException("Failed to lock the ref: " + ref);
-        }
+        throw new RuntimeException("Failed to lock the ref: " + ref);
 
       } else if (result == Result.REJECTED) {
-        RevCommit theirsCommit = revWalk.parseCommit(refUpdate.getOldObjectId());
-        NoteMap theirs = NoteMap.read(revWalk.getObjectReader(), theirsCommit);
-        NoteMapMerger merger = new NoteMapMerger(repo);
-        NoteMap merged = merger.merge(base, ours, theirs);
+        // Another process moved the ref on, so merge with wherever it is now.
+        Ref theirsRef = repo.getRef(ref);
+        if (theirsRef == null || --remainingMerges <= 0) {
+          throw new RuntimeException("Failed to merge with concurrent updates to " + ref);
+        }
+        RevCommit theirsCommit = revWalk.parseCommit(theirsRef.getObjectId());
+        ObjectId mergedTree = NotesTreeMerger.merge(
+            repo, reader, inserter, baseCommit, oursCommit, theirsCommit);
         RevCommit mergeCommit =
-            createCommit(merged, author, "Merged note records\n", theirsCommit, oursCommit);
+            createCommit(mergedTree, author, "Merged note records\n", theirsCommit, oursCommit);
         refUpdate = JgitUtils.updateRef(repo, mergeCommit, theirsCommit, ref);
-        remainingLockFailureCalls = JgitUtils.MAX_LOCK_FAILURE_CALLS;
 
       } else if (result == Result.IO_FAILURE) {
         throw new RuntimeException("Couldn't create notes because of IO_FAILURE");
@@ -229,10 +320,10 @@ public class GitNoteWriter<T> implements Closeable {
     revWalk.close();
   }
 
-  private RevCommit createCommit(
-      NoteMap map, PersonIdent author, String message, RevCommit... parents) throws IOException {
+  private RevCommit createCommit(ObjectId treeId, PersonIdent author, String message,
+      RevCommit... parents) throws IOException {
     CommitBuilder b = new CommitBuilder();
-    b.setTreeId(map.writeTree(inserter));
+    b.setTreeId(treeId);
     b.setAuthor(author);
     b.setCommitter(author);
     if (parents.length > 0) {
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Google and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Scott McMaster - initial implementation
+ *******************************************************************************/
+package com.google.appraise.eclipse.core.client.git;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.notes.NoteMap;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Caches loaded {@link NoteMap}s by notes commit id, so that readers and
+ * writers of the same notes commit share one map instead of walking the
+ * fanout trees again. Notes commits are immutable, so entries never go stale;
+ * the least recently used maps are evicted past {@link #MAX_MAPS}, and the
+ * maps are softly referenced so the cache gives way under memory pressure.
+ * The reader a map loads through is held strongly, so it is closed on
+ * eviction even if the map itself has been collected, and is reused if the
+ * map has to be loaded again.
+ *
+ * <p>A NoteMap loads its fanout buckets lazily through its own
+ * {@link ObjectReader}, so it is not thread-safe. Cached maps must never be
+ * modified, and must only be used while synchronized on the cache.
+ */
+class NoteMapCache {
+  /**
+   * How many notes commits' maps are kept per repository.
+   */
+  static final int MAX_MAPS = 8;
+
+  /**
+   * The caches, one per repository.
+   */
+  private static final Map<Repository, NoteMapCache> caches = new WeakHashMap<>();
+
+  /**
+   * A cached map, along with the reader it loads its buckets through.
+   */
+  private static class CachedMap {
+    private final ObjectReader reader;
+    private SoftReference<NoteMap> map;
+
+    private CachedMap(ObjectReader reader) {
+      this.reader = reader;
+    }
+  }
+
+  private final Map<ObjectId, CachedMap> maps =
+      new LinkedHashMap<ObjectId, CachedMap>(MAX_MAPS, 0.75f, true) {
+        private static final long serialVersionUID = -4541375218392306542L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ObjectId, CachedMap> eldest) {
+          if (size() <= MAX_MAPS) {
+            return false;
+          }
+          eldest.getValue().reader.close();
+          return true;
+        }
+      };
+
+  private NoteMapCache() {}
+
+  /**
+   * Gets the cache for the given repository.
+   */
+  static NoteMapCache forRepository(Repository repo) {
+    synchronized (caches) {
+      NoteMapCache cache = caches.get(repo);
+      if (cache == null) {
+        cache = new NoteMapCache();
+        caches.put(repo, cache);
+      }
+      return cache;
+    }
+  }
+
+  /**
+   * Gets the note map for the given notes commit, loading it if needed.
+   * The caller must hold the lock on this cache for as long as it uses the
+   * returned map, and must not modify it.
+   */
+  synchronized NoteMap get(Repository repo, AnyObjectId notesCommitId) throws IOException {
+    CachedMap cached = maps.get(notesCommitId);
+    if (cached == null) {
+      cached = new CachedMap(repo.newObjectReader());
+      maps.put(notesCommitId.copy(), cached);
+    }
+    NoteMap map = (cached.map != null) ? cached.map.get() : null;
+    if (map == null) {
+      ObjectId treeId;
+      try (RevWalk walk = new RevWalk(cached.reader)) {
+        treeId = walk.parseCommit(notesCommitId).getTree().copy();
+      }
+      map = NoteMap.readTree(cached.reader, treeId);
+      cached.map = new SoftReference<>(map);
+    }
+    return map;
+  }
+
+  /**
+   * Gets the id of the note blob attached to the given object in the given
+   * notes commit, or null if there is no note.
+   */
+  synchronized ObjectId getNoteData(
+      Repository repo, AnyObjectId notesCommitId, AnyObjectId annotatedId) throws IOException {
+    return get(repo, notesCommitId).get(annotatedId);
+  }
+}
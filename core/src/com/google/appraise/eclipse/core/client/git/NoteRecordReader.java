@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Google and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Scott McMaster - initial implementation
+ *******************************************************************************/
+package com.google.appraise.eclipse.core.client.git;
+
+import com.google.appraise.eclipse.core.client.data.Review;
+import com.google.appraise.eclipse.core.client.data.ReviewComment;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import org.apache.commons.codec.binary.Hex;
+import org.eclipse.jgit.lib.ObjectLoader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Reads the newline-delimited JSON records out of Appraise note blobs.
+ * Small blobs are scanned in place from the loader's cached bytes, and large
+ * ones are streamed, so a note is never copied around as a whole string.
+ */
+class NoteRecordReader {
+  private static final Logger logger = Logger.getLogger(NoteRecordReader.class.getName());
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * Gson instances are thread-safe, so all the note parsing shares this one.
+   */
+  static final Gson GSON = new Gson();
+
+  /**
+   * Receives the lines of a note, without their trailing newlines.
+   */
+  abstract static class LineVisitor {
+    /**
+     * Called for each line, which is {@code data[start, end)}.
+     * @param offset The offset of the line within the note blob.
+     */
+    abstract void visit(byte[] data, int start, int end, int offset) throws IOException;
+  }
+
+  private NoteRecordReader() {}
+
+  /**
+   * Calls the visitor for each line of the given note blob.
+   */
+  static void forEachLine(ObjectLoader loader, LineVisitor visitor) throws IOException {
+    if (!loader.isLarge()) {
+      byte[] data = loader.getCachedBytes();
+      int start = 0;
+      for (int i = 0; i < data.length; i++) {
+        if (data[i] == '\n') {
+          visitor.visit(data, start, i, start);
+          start = i + 1;
+        }
+      }
+      if (start < data.length) {
+        visitor.visit(data, start, data.length, start);
+      }
+      return;
+    }
+
+    try (InputStream in = new BufferedInputStream(loader.openStream())) {
+      byte[] line = new byte[1024];
+      int length = 0;
+      int offset = 0;
+      int lineOffset = 0;
+      int b;
+      while ((b = in.read()) != -1) {
+        offset++;
+        if (b == '\n') {
+          visitor.visit(line, 0, length, lineOffset);
+          length = 0;
+          lineOffset = offset;
+          continue;
+        }
+        if (length == line.length) {
+          line = Arrays.copyOf(line, line.length * 2);
+        }
+        line[length++] = (byte) b;
+      }
+      if (length > 0) {
+        visitor.visit(line, 0, length, lineOffset);
+      }
+    }
+  }
+
+  /**
+   * Parses a single JSON record, returning null if the line is empty or the
+   * parsing fails for any reason.
+   */
+  static <T> T parseRecord(byte[] data, int start, int end, Class<T> type) {
+    try {
+      return GSON.fromJson(
+          new InputStreamReader(new ByteArrayInputStream(data, start, end - start), UTF_8), type);
+    } catch (JsonParseException e) {
+      logger.warning("Weird data in " + type.getSimpleName() + " note: "
+          + new String(data, start, end - start, UTF_8));
+      return null;
+    }
+  }
+
+  /**
+   * Parses the single record that starts at the given byte offset of the note
+   * blob. Returns null if there is no parseable record there.
+   */
+  static <T> T readRecordAt(ObjectLoader loader, int offset, Class<T> type) throws IOException {
+    if (!loader.isLarge()) {
+      byte[] data = loader.getCachedBytes();
+      if (offset < 0 || offset >= data.length) {
+        return null;
+      }
+      int end = offset;
+      while (end < data.length && data[end] != '\n') {
+        end++;
+      }
+      return parseRecord(data, offset, end, type);
+    }
+
+    try (InputStream in = new BufferedInputStream(loader.openStream())) {
+      long skipped = 0;
+      while (skipped < offset) {
+        long n = in.skip(offset - skipped);
+        if (n <= 0) {
+          return null;
+        }
+        skipped += n;
+      }
+      byte[] line = new byte[1024];
+      int length = 0;
+      int b;
+      while ((b = in.read()) != -1 && b != '\n') {
+        if (length == line.length) {
+          line = Arrays.copyOf(line, line.length * 2);
+        }
+        line[length++] = (byte) b;
+      }
+      return parseRecord(line, 0, length, type);
+    }
+  }
+
+  /**
+   * Pulls the most recent review out of the given note blob, leveraging the
+   * timestamp. Returns null if there is no parseable review.
+   */
+  static Review readLatestReview(ObjectLoader loader) throws IOException {
+    final Review[] latest = new Review[1];
+    forEachLine(loader, new LineVisitor() {
+      @Override
+      void visit(byte[] data, int start, int end, int offset) {
+        Review anotherOne = parseRecord(data, start, end, Review.class);
+        if (latest[0] == null
+            || (anotherOne != null && anotherOne.getTimestamp() > latest[0].getTimestamp())) {
+          latest[0] = anotherOne;
+        }
+      }
+    });
+    return latest[0];
+  }
+
+  /**
+   * Reads all the comments in the given note blob into the given map, by
+   * comment id. The comment id is conventionally the SHA-1 hash of its JSON
+   * string.
+   */
+  static void readComments(ObjectLoader loader, final Map<String, ReviewComment> comments)
+      throws IOException {
+    forEachLine(loader, new LineVisitor() {
+      @Override
+      void visit(byte[] data, int start, int end, int offset) {
+        ReviewComment comment = parseRecord(data, start, end, ReviewComment.class);
+        if (comment != null) {
+          comments.put(recordId(data, start, end), comment);
+        }
+      }
+    });
+  }
+
+  /**
+   * Returns the hex SHA-1 hash of a single record line.
+   */
+  static String recordId(byte[] data, int start, int end) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      digest.update(data, start, end - start);
+      return Hex.encodeHexString(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
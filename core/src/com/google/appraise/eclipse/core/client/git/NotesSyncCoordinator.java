@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Google and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Scott McMaster - initial implementation
+ *******************************************************************************/
+package com.google.appraise.eclipse.core.client.git;
+
+import org.eclipse.jgit.lib.Repository;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces the notes syncs for a repository. At most one sync runs at a
+ * time, and callers that arrive while it is running wait for it and share its
+ * result rather than fetching again. A sync that finished within the
+ * freshness window is reused as well, unless the caller forces a new one.
+ */
+class NotesSyncCoordinator {
+  /**
+   * The coordinators, one per repository.
+   */
+  private static final Map<Repository, NotesSyncCoordinator> coordinators = new WeakHashMap<>();
+
+  /**
+   * The sync that is currently running, or null.
+   */
+  private FutureTask<Void> inFlight;
+
+  /**
+   * When the last successful sync started, in milliseconds, or 0 if there
+   * has not been one.
+   */
+  private long lastSyncMillis;
+
+  private NotesSyncCoordinator() {}
+
+  /**
+   * Gets the coordinator for the given repository.
+   */
+  static NotesSyncCoordinator forRepository(Repository repo) {
+    synchronized (coordinators) {
+      NotesSyncCoordinator coordinator = coordinators.get(repo);
+      if (coordinator == null) {
+        coordinator = new NotesSyncCoordinator();
+        coordinators.put(repo, coordinator);
+      }
+      return coordinator;
+    }
+  }
+
+  /**
+   * Runs the given sync, unless one is already running or recently finished.
+   * @param freshnessMillis How long a finished sync stays fresh enough to
+   *     reuse. 0 or less means every call syncs, though concurrent calls
+   *     still share one sync.
+   * @param force Whether to sync even if a recent sync is fresh. A forced
+   *     call still shares a sync that is already running, since that one is
+   *     fetching right now anyway.
+   */
+  void sync(Callable<Void> syncAction, long freshnessMillis, boolean force)
+      throws GitClientException {
+    FutureTask<Void> task;
+    boolean owner = false;
+    synchronized (this) {
+      if (inFlight != null) {
+        task = inFlight;
+      } else if (!force && isFresh(freshnessMillis)) {
+        return;
+      } else {
+        task = new FutureTask<>(syncAction);
+        inFlight = task;
+        owner = true;
+      }
+    }
+
+    if (owner) {
+      long startMillis = System.currentTimeMillis();
+      task.run();
+      synchronized (this) {
+        inFlight = null;
+        if (succeeded(task)) {
+          lastSyncMillis = startMillis;
+        }
+      }
+    }
+    await(task);
+  }
+
+  private boolean isFresh(long freshnessMillis) {
+    return lastSyncMillis != 0 && freshnessMillis > 0
+        && System.currentTimeMillis() - lastSyncMillis < freshnessMillis;
+  }
+
+  private static boolean succeeded(FutureTask<Void> task) {
+    try {
+      task.get();
+      return true;
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  /**
+   * Waits for the given sync, rethrowing its failure.
+   */
+  private static void await(FutureTask<Void> task) throws GitClientException {
+    try {
+      task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GitClientException("Interrupted waiting for the notes sync", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof GitClientException) {
+        throw (GitClientException) e.getCause();
+      }
+      throw new GitClientException("Error syncing notes", e.getCause());
+    }
+  }
+}
@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Google and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Scott McMaster - initial implementation
+ *******************************************************************************/
+package com.google.appraise.eclipse.core.client.git;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.merge.MergeStrategy;
+import org.eclipse.jgit.notes.NoteMap;
+import org.eclipse.jgit.notes.NoteMapMerger;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Three-way merges notes trees by comparing their fanout subtrees. A subtree
+ * that only one side changed is taken from that side by id, without being
+ * read, so the cost of a merge scales with the number of notes both sides
+ * touched rather than with the size of the notes trees. Notes that both sides
+ * changed are merged with {@link AppraiseNoteMerger}.
+ *
+ * <p>This only works while both sides fan the notes out the same way. When
+ * one side has split a level into subtrees that the other still keeps as
+ * notes, the merge falls back to Jgit's {@link NoteMapMerger}.
+ */
+class NotesTreeMerger {
+  /**
+   * Orders tree entries the way git does, which compares subtrees as if their
+   * names ended with a slash.
+   */
+  private static final Comparator<Entry> GIT_ORDER = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry a, Entry b) {
+      return a.sortKey().compareTo(b.sortKey());
+    }
+  };
+
+  private final ObjectReader reader;
+  private final ObjectInserter inserter;
+
+  private NotesTreeMerger(ObjectReader reader, ObjectInserter inserter) {
+    this.reader = reader;
+    this.inserter = inserter;
+  }
+
+  /**
+   * Merges the notes of the given commits, returning the id of the merged
+   * notes tree. The new objects are inserted but not flushed.
+   * @param base The merge base, or null if there is none.
+   */
+  static ObjectId merge(Repository repo, ObjectReader reader, ObjectInserter inserter,
+      RevCommit base, RevCommit ours, RevCommit theirs) throws IOException {
+    try {
+      return new NotesTreeMerger(reader, inserter).mergeTrees(
+          (base != null) ? base.getTree() : null, ours.getTree(), theirs.getTree());
+    } catch (FanoutMismatchException e) {
+      // The maps are read fresh through the merge's own reader rather than taken
+      // from the NoteMapCache, so that the merge does not hold up the cache's readers.
+      NoteMap baseMap = (base != null) ? NoteMap.read(reader, base) : NoteMap.newEmptyMap();
+      NoteMapMerger merger =
+          new NoteMapMerger(repo, new AppraiseNoteMerger(), MergeStrategy.RESOLVE);
+      NoteMap merged =
+          merger.merge(baseMap, NoteMap.read(reader, ours), NoteMap.read(reader, theirs));
+      return merged.writeTree(inserter);
+    }
+  }
+
+  /**
+   * Merges one level of the notes trees.
+   * @param base The base tree, or null if the level is new on both sides.
+   */
+  private ObjectId mergeTrees(AnyObjectId base, AnyObjectId ours, AnyObjectId theirs)
+      throws IOException, FanoutMismatchException {
+    if (ours.equals(theirs) || theirs.equals(base)) {
+      return ours.copy();
+    }
+    if (ours.equals(base)) {
+      return theirs.copy();
+    }
+
+    Map<String, Entry> baseEntries = readTree(base);
+    Map<String, Entry> ourEntries = readTree(ours);
+    Map<String, Entry> theirEntries = readTree(theirs);
+    checkFanout(ourEntries, theirEntries);
+    checkFanout(baseEntries, ourEntries);
+    checkFanout(baseEntries, theirEntries);
+
+    Set<String> names = new HashSet<>(ourEntries.keySet());
+    names.addAll(theirEntries.keySet());
+    List<Entry> merged = new ArrayList<>(names.size());
+    for (String name : names) {
+      Entry entry =
+          mergeEntry(baseEntries.get(name), ourEntries.get(name), theirEntries.get(name));
+      if (entry != null) {
+        merged.add(entry);
+      }
+    }
+    Collections.sort(merged, GIT_ORDER);
+
+    TreeFormatter formatter = new TreeFormatter();
+    for (Entry entry : merged) {
+      formatter.append(entry.name, entry.mode, entry.id);
+    }
+    return inserter.insert(formatter);
+  }
+
+  /**
+   * Merges the entries of one name, any of which may be null if the name is
+   * not in that tree. Returns null if the merged tree does not have the name.
+   */
+  private Entry mergeEntry(Entry base, Entry ours, Entry theirs)
+      throws IOException, FanoutMismatchException {
+    if (sameEntry(ours, theirs) || sameEntry(base, theirs)) {
+      return ours;
+    }
+    if (sameEntry(base, ours)) {
+      return theirs;
+    }
+    // Both sides changed the entry. Like the note mergers, a note that one side
+    // deleted and the other changed keeps the change.
+    if (ours == null) {
+      return theirs;
+    }
+    if (theirs == null) {
+      return ours;
+    }
+    if (ours.isTree() && theirs.isTree()) {
+      ObjectId baseTree = (base != null && base.isTree()) ? base.id : null;
+      return new Entry(ours.name, FileMode.TREE, mergeTrees(baseTree, ours.id, theirs.id));
+    }
+    if (ours.isTree() || theirs.isTree()) {
+      throw new FanoutMismatchException();
+    }
+    return new Entry(ours.name, ours.mode,
+        AppraiseNoteMerger.union(reader, inserter, null, ours.id, theirs.id));
+  }
+
+  private static boolean sameEntry(Entry a, Entry b) {
+    if (a == null || b == null) {
+      return a == b;
+    }
+    return a.mode.equals(b.mode) && a.id.equals(b.id);
+  }
+
+  /**
+   * Throws if one tree keeps notes at a level where the other has fanout
+   * subtrees, since the same note would then live under different names.
+   */
+  private static void checkFanout(Map<String, Entry> a, Map<String, Entry> b)
+      throws FanoutMismatchException {
+    if ((hasTrees(a) && hasNotes(b)) || (hasNotes(a) && hasTrees(b))) {
+      throw new FanoutMismatchException();
+    }
+  }
+
+  private static boolean hasTrees(Map<String, Entry> entries) {
+    for (Entry entry : entries.values()) {
+      if (entry.isTree()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean hasNotes(Map<String, Entry> entries) {
+    for (Entry entry : entries.values()) {
+      if (!entry.isTree()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the entries of the given tree by name, or none if it is null.
+   */
+  private Map<String, Entry> readTree(AnyObjectId treeId) throws IOException {
+    Map<String, Entry> entries = new HashMap<>();
+    if (treeId == null) {
+      return entries;
+    }
+    CanonicalTreeParser parser = new CanonicalTreeParser();
+    parser.reset(reader, treeId);
+    while (!parser.eof()) {
+      Entry entry = new Entry(
+          parser.getEntryPathString(), parser.getEntryFileMode(), parser.getEntryObjectId());
+      entries.put(entry.name, entry);
+      parser.next();
+    }
+    return entries;
+  }
+
+  /**
+   * One entry of a notes tree.
+   */
+  private static class Entry {
+    final String name;
+    final FileMode mode;
+    final ObjectId id;
+
+    Entry(String name, FileMode mode, ObjectId id) {
+      this.name = name;
+      this.mode = mode;
+      this.id = id;
+    }
+
+    boolean isTree() {
+      return FileMode.TREE.equals(mode);
+    }
+
+    String sortKey() {
+      return isTree() ? name + "/" : name;
+    }
+  }
+
+  /**
+   * Thrown when the two sides fan the notes out differently.
+   */
+  private static class FanoutMismatchException extends Exception {
+    private static final long serialVersionUID = 1L;
+  }
+}
@@ -0,0 +1,391 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Google and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Scott McMaster - initial implementation
+ *******************************************************************************/
+package com.google.appraise.eclipse.core.client.git;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.PackParser;
+import org.eclipse.jgit.util.IO;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * An object inserter that holds the objects back until {@link #flush}, and
+ * then writes them all as one small pack, rather than as one loose object
+ * each. A notes commit is a blob, a few fanout trees and the commit, so this
+ * keeps the notes history from filling the object directory with loose
+ * objects. The packs pile up instead, and are consolidated by
+ * {@link AppraiseGitReviewClient#consolidatePacks}. To tell them apart from
+ * the repository's other packs, the names of the packs written here are
+ * recorded in a file in the git dir.
+ *
+ * <p>Inserted objects can not be read until they are flushed.
+ */
+class PackedObjectInserter extends ObjectInserter {
+  /**
+   * The list of notes packs, relative to the git dir.
+   */
+  private static final String NOTES_PACKS_PATH = "appraise/notes-packs";
+
+  /**
+   * The magic number that starts a version 2 pack index.
+   */
+  private static final int PACK_INDEX_V2_MAGIC = 0xff744f63;
+
+  private final Repository repo;
+
+  /**
+   * Writes the packs, and checks which objects the repository already has.
+   */
+  private final ObjectInserter packInserter;
+  private final ObjectReader reader;
+
+  private final List<PendingObject> pending = new ArrayList<>();
+  private final Set<ObjectId> pendingIds = new HashSet<>();
+
+  private PackedObjectInserter(Repository repo) {
+    this.repo = repo;
+    this.packInserter = repo.newObjectInserter();
+    this.reader = repo.newObjectReader();
+  }
+
+  /**
+   * Creates the inserter for writing notes objects to the given repository:
+   * a packing one if the appraise.packNotes git config value is set, or the
+   * repository's own, loose object, inserter otherwise.
+   */
+  static ObjectInserter forNotes(Repository repo) {
+    if (repo.getConfig().getBoolean(
+        AppraiseGitReviewClient.CONFIG_SECTION, AppraiseGitReviewClient.CONFIG_PACK_NOTES, false)) {
+      return new PackedObjectInserter(repo);
+    }
+    return repo.newObjectInserter();
+  }
+
+  @Override
+  public ObjectId insert(int type, byte[] data, int off, int len) throws IOException {
+    ObjectId id = idFor(type, data, off, len);
+    if (!pendingIds.contains(id) && !reader.has(id)) {
+      byte[] copy = new byte[len];
+      System.arraycopy(data, off, copy, 0, len);
+      pending.add(new PendingObject(type, copy));
+      pendingIds.add(id);
+    }
+    return id;
+  }
+
+  @Override
+  public ObjectId insert(int type, long length, InputStream in) throws IOException {
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Object too large to pack: " + length + " bytes");
+    }
+    byte[] data = new byte[(int) length];
+    IO.readFully(in, data, 0, data.length);
+    return insert(type, data, 0, data.length);
+  }
+
+  @Override
+  public PackParser newPackParser(InputStream in) throws IOException {
+    return packInserter.newPackParser(in);
+  }
+
+  /**
+   * Returns a reader for the repository. It does not see the objects that
+   * have not been flushed yet.
+   */
+  @Override
+  public ObjectReader newReader() {
+    return repo.newObjectReader();
+  }
+
+  /**
+   * Writes the pending objects to the repository as a single pack.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (pending.isEmpty()) {
+      return;
+    }
+    Set<String> packsBefore = listPacks(repo);
+    PackParser parser = packInserter.newPackParser(new ByteArrayInputStream(writePack()));
+    parser.setAllowThin(false);
+    parser.parse(NullProgressMonitor.INSTANCE);
+    packInserter.flush();
+    pending.clear();
+    pendingIds.clear();
+
+    Set<String> written = listPacks(repo);
+    written.removeAll(packsBefore);
+    recordNotesPacks(repo, written);
+  }
+
+  /**
+   * Copies the objects of the recorded notes packs into a single new pack,
+   * and deletes the old ones. The repository's other packs are left alone.
+   * The new pack is recorded in their place, so that it is consolidated
+   * again along with the packs that later writes add.
+   * @return whether any packs were consolidated.
+   */
+  static boolean consolidateNotesPacks(Repository repo) throws IOException {
+    Set<String> notesPacks = readNotesPacks(repo);
+    if (notesPacks.size() < 2) {
+      return false;
+    }
+
+    File packDir = new File(repo.getDirectory(), "objects/pack");
+    try (PackedObjectInserter inserter = new PackedObjectInserter(repo)) {
+      for (String pack : notesPacks) {
+        File index = new File(packDir, toIndexName(pack));
+        for (ObjectId id : readPackIndex(index)) {
+          if (inserter.pendingIds.add(id)) {
+            // The objects are all in the repository already, so they are added without
+            // the check that insert() makes.
+            ObjectLoader loader = inserter.reader.open(id);
+            inserter.pending.add(new PendingObject(loader.getType(), loader.getCachedBytes()));
+          }
+        }
+      }
+      Set<String> packsBefore = listPacks(repo);
+      PackParser parser =
+          inserter.packInserter.newPackParser(new ByteArrayInputStream(inserter.writePack()));
+      parser.setAllowThin(false);
+      parser.parse(NullProgressMonitor.INSTANCE);
+      inserter.packInserter.flush();
+
+      Set<String> written = listPacks(repo);
+      written.removeAll(packsBefore);
+      // Every object is in the new pack now. The pack file goes first, since
+      // readers only look for an index once they have found its pack.
+      Set<String> remaining = new HashSet<>();
+      for (String pack : notesPacks) {
+        if (!new File(packDir, pack).delete()
+            || !new File(packDir, toIndexName(pack)).delete()) {
+          remaining.add(pack);
+        }
+      }
+      replaceNotesPacks(repo, notesPacks, remaining, written);
+    }
+    return true;
+  }
+
+  private static String toIndexName(String packName) {
+    return packName.substring(0, packName.length() - ".pack".length()) + ".idx";
+  }
+
+  /**
+   * Reads the ids of the objects in a pack from its index, which JGit and git
+   * write in version 2 format, or in version 1 for old packs.
+   */
+  private static List<ObjectId> readPackIndex(File index) throws IOException {
+    try (DataInputStream in = new DataInputStream(new FileInputStream(index))) {
+      int first = in.readInt();
+      boolean v2 = first == PACK_INDEX_V2_MAGIC;
+      if (v2) {
+        int version = in.readInt();
+        if (version != 2) {
+          throw new IOException("Unsupported pack index version " + version + ": " + index);
+        }
+        in.skipBytes(255 * 4);
+      } else {
+        // Version 1 has no header, so the first int is already part of the fanout table.
+        in.skipBytes(254 * 4);
+      }
+      int count = in.readInt();
+
+      List<ObjectId> ids = new ArrayList<>(count);
+      byte[] raw = new byte[20];
+      for (int i = 0; i < count; i++) {
+        if (!v2) {
+          // Version 1 stores each object's offset before its id.
+          in.skipBytes(4);
+        }
+        in.readFully(raw);
+        ids.add(ObjectId.fromRaw(raw));
+      }
+      return ids;
+    }
+  }
+
+  /**
+   * Lists the names of the repository's packs, leaving out the ones kept
+   * with a .keep file.
+   */
+  private static Set<String> listPacks(Repository repo) {
+    Set<String> packs = new HashSet<>();
+    File packDir = new File(repo.getDirectory(), "objects/pack");
+    String[] names = packDir.list();
+    if (names != null) {
+      for (String name : names) {
+        if (name.endsWith(".pack")) {
+          String base = name.substring(0, name.length() - ".pack".length());
+          if (!new File(packDir, base + ".keep").exists()) {
+            packs.add(name);
+          }
+        }
+      }
+    }
+    return packs;
+  }
+
+  private static synchronized void recordNotesPacks(Repository repo, Set<String> names)
+      throws IOException {
+    if (names.isEmpty()) {
+      return;
+    }
+    File file = new File(repo.getDirectory(), NOTES_PACKS_PATH);
+    File dir = file.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create " + dir);
+    }
+    Files.write(file.toPath(), names, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND);
+  }
+
+  /**
+   * Counts the notes packs that the repository still has unkept.
+   */
+  static int countNotesPacks(Repository repo) throws IOException {
+    return readNotesPacks(repo).size();
+  }
+
+  /**
+   * Reads the names of the recorded notes packs that the repository still has
+   * unkept.
+   */
+  private static synchronized Set<String> readNotesPacks(Repository repo) throws IOException {
+    File file = new File(repo.getDirectory(), NOTES_PACKS_PATH);
+    if (!file.exists()) {
+      return new HashSet<>();
+    }
+    Set<String> notesPacks =
+        new LinkedHashSet<>(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+    notesPacks.retainAll(listPacks(repo));
+    return notesPacks;
+  }
+
+  /**
+   * Replaces consolidated packs in the record, keeping the ones that writes
+   * recorded meanwhile and the ones that could not be deleted.
+   */
+  private static synchronized void replaceNotesPacks(Repository repo, Set<String> consolidated,
+      Set<String> remaining, Set<String> written) throws IOException {
+    File file = new File(repo.getDirectory(), NOTES_PACKS_PATH);
+    Set<String> notesPacks = new LinkedHashSet<>();
+    if (file.exists()) {
+      notesPacks.addAll(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+    }
+    notesPacks.removeAll(consolidated);
+    notesPacks.addAll(remaining);
+    notesPacks.addAll(written);
+    notesPacks.retainAll(listPacks(repo));
+    Files.write(file.toPath(), notesPacks, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Formats the pending objects as a version 2 pack, with every object stored
+   * whole rather than as a delta.
+   */
+  private byte[] writePack() throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DigestOutputStream out = new DigestOutputStream(bytes, digest);
+    out.write(new byte[] {'P', 'A', 'C', 'K', 0, 0, 0, 2});
+    writeInt(out, pending.size());
+
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    try {
+      for (PendingObject object : pending) {
+        writeObjectHeader(out, object.type, object.data.length);
+        deflater.reset();
+        DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater);
+        deflated.write(object.data);
+        deflated.finish();
+      }
+    } finally {
+      deflater.end();
+    }
+    out.flush();
+    bytes.write(digest.digest());
+    return bytes.toByteArray();
+  }
+
+  private static void writeInt(DigestOutputStream out, int value) throws IOException {
+    out.write(value >>> 24);
+    out.write(value >>> 16);
+    out.write(value >>> 8);
+    out.write(value);
+  }
+
+  /**
+   * Writes the type and inflated size of an object, in the pack format's
+   * variable length encoding.
+   */
+  private static void writeObjectHeader(DigestOutputStream out, int type, long size)
+      throws IOException {
+    int b = (type << 4) | (int) (size & 0x0f);
+    size >>>= 4;
+    while (size != 0) {
+      out.write(b | 0x80);
+      b = (int) (size & 0x7f);
+      size >>>= 7;
+    }
+    out.write(b);
+  }
+
+  @Override
+  public void close() {
+    pending.clear();
+    pendingIds.clear();
+    reader.close();
+    packInserter.close();
+  }
+
+  /**
+   * An object waiting for the next flush.
+   */
+  private static class PendingObject {
+    final int type;
+    final byte[] data;
+
+    PendingObject(int type, byte[] data) {
+      this.type = type;
+      this.data = data;
+    }
+  }
+}
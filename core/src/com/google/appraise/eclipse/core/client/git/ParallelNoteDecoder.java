@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Google and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Scott McMaster - initial implementation
+ *******************************************************************************/
+package com.google.appraise.eclipse.core.client.git;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Loads and decodes review note blobs into {@link ReviewHeader}s for the
+ * {@link ReviewIndex}, spreading the work across a bounded fork-join pool.
+ * Blob loading is I/O bound on pack reads and the JSON decoding is CPU bound,
+ * so both scale with the number of workers. Each leaf task reads through its own
+ * {@link ObjectReader}, since readers are not thread-safe.
+ */
+class ParallelNoteDecoder {
+  /**
+   * Below this many notes, the decoding stays on the calling thread.
+   */
+  static final int MIN_PARALLEL_NOTES = 64;
+
+  /**
+   * The most workers per processor. The workers spend some of their time
+   * waiting on pack reads, so a few more than one each still helps.
+   */
+  private static final int MAX_WORKERS_PER_PROCESSOR = 4;
+
+  /**
+   * The shared pool, which is replaced when a decoder asks for a different
+   * parallelism.
+   */
+  private static ForkJoinPool pool;
+
+  private final int parallelism;
+
+  /**
+   * Creates a decoder that uses up to the given number of workers, but no
+   * more than {@link #MAX_WORKERS_PER_PROCESSOR} per processor. A parallelism
+   * of 1 or less decodes sequentially.
+   */
+  ParallelNoteDecoder(int parallelism) {
+    this.parallelism = Math.min(parallelism,
+        Runtime.getRuntime().availableProcessors() * MAX_WORKERS_PER_PROCESSOR);
+  }
+
+  /**
+   * Decodes the given note blobs, by review commit hash. The result maps a
+   * hash to null if its note has no parseable review.
+   */
+  Map<ObjectId, ReviewHeader> decode(
+      Repository repo, List<Map.Entry<ObjectId, ObjectId>> notes) throws IOException {
+    if (parallelism <= 1 || notes.size() < MIN_PARALLEL_NOTES) {
+      try (ObjectReader reader = repo.newObjectReader()) {
+        return decodeAll(reader, notes);
+      }
+    }
+
+    // Several leaves per worker, so that one slow pack read does not hold
+    // up the whole listing.
+    int leafSize = Math.max(1, notes.size() / (parallelism * 4));
+    while (true) {
+      try {
+        return getPool(parallelism).invoke(new DecodeTask(repo, notes, leafSize));
+      } catch (RejectedExecutionException e) {
+        // Another decoder replaced the pool in the meantime.
+        continue;
+      } catch (DecodeException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  /**
+   * Gets the shared pool, first replacing it if it has a different
+   * parallelism. The old pool finishes the work it already has.
+   */
+  private static synchronized ForkJoinPool getPool(int parallelism) {
+    if (pool == null || pool.getParallelism() != parallelism) {
+      if (pool != null) {
+        pool.shutdown();
+      }
+      pool = new ForkJoinPool(parallelism);
+    }
+    return pool;
+  }
+
+  private static Map<ObjectId, ReviewHeader> decodeAll(
+      ObjectReader reader, List<Map.Entry<ObjectId, ObjectId>> notes) throws IOException {
+    Map<ObjectId, ReviewHeader> decoded = new HashMap<>();
+    for (Map.Entry<ObjectId, ObjectId> note : notes) {
+      ObjectId blobId = note.getValue();
+      decoded.put(note.getKey(),
+          ReviewIndex.parseHeader(note.getKey(), blobId, reader.open(blobId)));
+    }
+    return decoded;
+  }
+
+  /**
+   * Splits the notes in half until they fit in a leaf, then decodes the leaf
+   * with a fresh object reader.
+   */
+  private static class DecodeTask extends RecursiveTask<Map<ObjectId, ReviewHeader>> {
+    private static final long serialVersionUID = -2640178227925148751L;
+
+    private final Repository repo;
+    private final List<Map.Entry<ObjectId, ObjectId>> notes;
+    private final int leafSize;
+
+    private DecodeTask(Repository repo, List<Map.Entry<ObjectId, ObjectId>> notes, int leafSize) {
+      this.repo = repo;
+      this.notes = notes;
+      this.leafSize = leafSize;
+    }
+
+    @Override
+    protected Map<ObjectId, ReviewHeader> compute() {
+      if (notes.size() <= leafSize) {
+        try (ObjectReader reader = repo.newObjectReader()) {
+          return decodeAll(reader, notes);
+        } catch (IOException e) {
+          throw new DecodeException(e);
+        }
+      }
+
+      int middle = notes.size() / 2;
+      DecodeTask left = new DecodeTask(repo, notes.subList(0, middle), leafSize);
+      DecodeTask right = new DecodeTask(repo, notes.subList(middle, notes.size()), leafSize);
+      left.fork();
+      Map<ObjectId, ReviewHeader> decoded = right.compute();
+      decoded.putAll(left.join());
+      return decoded;
+    }
+  }
+
+  /**
+   * Carries an I/O failure out of the pool.
+   */
+  private static class DecodeException extends RuntimeException {
+    private static final long serialVersionUID = 6208326359421683172L;
+
+    private DecodeException(IOException cause) {
+      super(cause);
+    }
+
+    @Override
+    public synchronized IOException getCause() {
+      return (IOException) super.getCause();
+    }
+  }
+}
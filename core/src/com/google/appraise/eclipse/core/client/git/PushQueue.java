@@ -0,0 +1,316 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Google and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Scott McMaster - initial implementation
+ *******************************************************************************/
+package com.google.appraise.eclipse.core.client.git;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Defers and coalesces the pushes of a repository's notes commits. Writers
+ * commit their notes locally and enqueue the new commit here; the queue
+ * pushes once per flush window, however many commits arrived in it.
+ *
+ * <p>Until they are pushed, the enqueued commits are recorded in a journal in
+ * the git dir, one "ref commit" line each, so that they are pushed by the next
+ * client for the repository even if the process dies or the remote is down.
+ */
+class PushQueue {
+  private static final Logger logger = Logger.getLogger(PushQueue.class.getName());
+
+  /**
+   * The journal file, relative to the git dir.
+   */
+  private static final String JOURNAL_PATH = "appraise/push-journal";
+
+  /**
+   * The longest a failing push waits before it is retried.
+   */
+  static final long MAX_RETRY_DELAY_MS = 10 * 60 * 1000;
+
+  /**
+   * The queues, one per repository.
+   */
+  private static final Map<Repository, PushQueue> queues = new WeakHashMap<>();
+
+  /**
+   * Runs the deferred pushes of all repositories.
+   */
+  private static ScheduledExecutorService executor;
+
+  /**
+   * The repository, held weakly so that the queue does not keep its map entry
+   * alive. Once the repository is gone, the commits left in the journal are
+   * pushed by the next queue for its directory.
+   */
+  private final WeakReference<Repository> repo;
+  private final File directory;
+  private final File journal;
+
+  /**
+   * Held while pushing, so that only one push runs at a time.
+   */
+  private final Object pushLock = new Object();
+
+  /**
+   * The commits that have not been pushed yet, in the order they were made.
+   */
+  private final List<String> pending = new ArrayList<>();
+
+  /**
+   * The scheduled push, or null if none is scheduled.
+   */
+  private ScheduledFuture<?> scheduled;
+
+  /**
+   * How many pushes in a row have failed.
+   */
+  private int failures;
+
+  private PushQueue(Repository repo) {
+    this.repo = new WeakReference<>(repo);
+    this.directory = repo.getDirectory();
+    this.journal = new File(directory, JOURNAL_PATH);
+  }
+
+  /**
+   * Gets the queue for the given repository. The first call for a repository
+   * picks up the commits left in its journal and schedules their push after
+   * the given delay.
+   */
+  static PushQueue forRepository(Repository repo, long delayMillis) {
+    synchronized (queues) {
+      PushQueue queue = queues.get(repo);
+      if (queue == null) {
+        queue = new PushQueue(repo);
+        queue.resume(delayMillis);
+        queues.put(repo, queue);
+      }
+      return queue;
+    }
+  }
+
+  /**
+   * Whether the given repository has a journal of unpushed notes commits,
+   * which a queue should be created to resume.
+   */
+  static boolean hasJournal(Repository repo) {
+    return new File(repo.getDirectory(), JOURNAL_PATH).isFile();
+  }
+
+  private synchronized void resume(long delayMillis) {
+    try {
+      pending.addAll(readJournal());
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to read the push journal " + journal, e);
+    }
+    if (!pending.isEmpty()) {
+      schedule(delayMillis);
+    }
+  }
+
+  /**
+   * Records a notes commit that needs to be pushed, and schedules a push after
+   * the given delay unless one is already scheduled.
+   */
+  synchronized void enqueue(String refName, ObjectId commitId, long delayMillis)
+      throws GitClientException {
+    String entry = refName + " " + commitId.name();
+    try {
+      appendToJournal(entry);
+    } catch (IOException e) {
+      throw new GitClientException("Failed to journal the notes commit " + entry, e);
+    }
+    pending.add(entry);
+    if (scheduled == null) {
+      schedule(delayMillis);
+    }
+  }
+
+  /**
+   * Pushes the pending notes commits now, rather than waiting for the
+   * scheduled push. If the push fails, another attempt is scheduled before
+   * the failure is thrown, since the scheduled push was cancelled.
+   */
+  void flush() throws GitClientException {
+    synchronized (pushLock) {
+      Repository repository = repo.get();
+      int pushing;
+      synchronized (this) {
+        if (scheduled != null) {
+          scheduled.cancel(false);
+          scheduled = null;
+        }
+        if (pending.isEmpty() || repository == null) {
+          return;
+        }
+        pushing = pending.size();
+      }
+
+      // One push covers every commit enqueued so far, since it pushes the tips of the
+      // notes refs. Commits enqueued while it runs stay pending for the next one.
+      try {
+        new AppraiseGitReviewClient(repository).pushPendingNotes();
+      } catch (GitClientException e) {
+        retry(e);
+        throw e;
+      }
+
+      synchronized (this) {
+        pending.subList(0, pushing).clear();
+        failures = 0;
+        try {
+          writeJournal();
+        } catch (IOException e) {
+          // The commits were pushed; the stale entries are just pushed again next time.
+          logger.log(Level.WARNING, "Failed to update the push journal " + journal, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Whether there are notes commits that have not been pushed yet.
+   */
+  synchronized boolean hasPending() {
+    return !pending.isEmpty();
+  }
+
+  private void schedule(long delayMillis) {
+    scheduled = getExecutor().schedule(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (PushQueue.this) {
+          scheduled = null;
+        }
+        try {
+          flush();
+        } catch (GitClientException e) {
+          // Already logged, and retried, by flush.
+        }
+      }
+    }, Math.max(delayMillis, 0), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Schedules another attempt after a failed push, doubling the delay with
+   * each failure in a row. The commits stay in the journal meanwhile.
+   */
+  private synchronized void retry(GitClientException e) {
+    // Only the first failure in a row is logged, so an unreachable remote does not
+    // flood the log.
+    if (failures++ == 0) {
+      logger.log(Level.WARNING, "Failed to push the notes of " + directory, e);
+    }
+    if (scheduled == null && !pending.isEmpty()) {
+      long delay = 1000;
+      for (int i = 0; i < failures && delay < MAX_RETRY_DELAY_MS; i++) {
+        delay *= 2;
+      }
+      schedule(Math.min(delay, MAX_RETRY_DELAY_MS));
+    }
+  }
+
+  private static synchronized ScheduledExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "Appraise notes push");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return executor;
+  }
+
+  private List<String> readJournal() throws IOException {
+    List<String> entries = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(journal), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.isEmpty()) {
+          entries.add(line);
+        }
+      }
+    } catch (FileNotFoundException e) {
+      // Nothing pending.
+    }
+    return entries;
+  }
+
+  /**
+   * Appends an entry to the journal and waits for it to reach the disk, so
+   * that the commit is not forgotten even if the process dies right after.
+   */
+  private void appendToJournal(String entry) throws IOException {
+    File dir = journal.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create " + dir);
+    }
+    try (FileOutputStream out = new FileOutputStream(journal, true)) {
+      out.write((entry + "\n").getBytes(StandardCharsets.UTF_8));
+      out.getFD().sync();
+    }
+  }
+
+  /**
+   * Replaces the journal with the entries that are still pending, or deletes
+   * it if there are none.
+   */
+  private void writeJournal() throws IOException {
+    if (pending.isEmpty()) {
+      Files.deleteIfExists(journal.toPath());
+      return;
+    }
+    File tmp = File.createTempFile("push-journal", ".tmp", journal.getParentFile());
+    try {
+      try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+        for (String entry : pending) {
+          out.write(entry);
+          out.write('\n');
+        }
+      }
+      Files.move(tmp.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      if (tmp.exists()) {
+        tmp.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Google and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Scott McMaster - initial implementation
+ *******************************************************************************/
+package com.google.appraise.eclipse.core.client.git;
+
+import org.eclipse.jgit.lib.BatchRefUpdate;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.RefUpdate.Result;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes the updates of a repository's notes refs within this process.
+ * Writers hold the ref's lock from reading the ref until they have updated
+ * it, and wait their turn in arrival order, so they never race each other
+ * for the ref's lock file. What is left is contention with other processes,
+ * such as command line git, which {@link #update} retries with jittered
+ * backoff.
+ */
+class RefUpdateCoordinator {
+  /**
+   * The longest {@link #update} waits between attempts.
+   */
+  private static final int MAX_BACKOFF_MS = 1000;
+
+  /**
+   * The coordinators, one per repository.
+   */
+  private static final Map<Repository, RefUpdateCoordinator> coordinators =
+      new WeakHashMap<>();
+
+  /**
+   * The repository, held weakly so that the coordinator does not keep its
+   * map entry alive.
+   */
+  private final WeakReference<Repository> repo;
+
+  /**
+   * The locks, by ref name.
+   */
+  private final Map<String, Lock> locks = new HashMap<>();
+
+  private RefUpdateCoordinator(Repository repo) {
+    this.repo = new WeakReference<>(repo);
+  }
+
+  /**
+   * Gets the coordinator for the given repository.
+   */
+  static RefUpdateCoordinator forRepository(Repository repo) {
+    synchronized (coordinators) {
+      RefUpdateCoordinator coordinator = coordinators.get(repo);
+      if (coordinator == null) {
+        coordinator = new RefUpdateCoordinator(repo);
+        coordinators.put(repo, coordinator);
+      }
+      return coordinator;
+    }
+  }
+
+  /**
+   * Gets the lock that writers in this process hold while they read and
+   * update the given ref. It is fair, so writers go in arrival order.
+   */
+  synchronized Lock getLock(String refName) {
+    Lock lock = locks.get(refName);
+    if (lock == null) {
+      lock = new ReentrantLock(true);
+      locks.put(refName, lock);
+    }
+    return lock;
+  }
+
+  /**
+   * Runs the given ref update, which should be made while holding the ref's
+   * lock. If the ref's lock file is held by another process, the update is
+   * retried with jittered, exponential backoff. If the ref no longer has the
+   * expected old value, because another process updated it, this returns
+   * {@link Result#REJECTED} right away so that the caller can merge.
+   */
+  Result update(RefUpdate update) throws IOException, InterruptedException {
+    int delay = JgitUtils.SLEEP_ON_LOCK_FAILURE_MS;
+    for (int attempt = 1;; attempt++) {
+      Result result = update.update();
+      if (result != Result.LOCK_FAILURE) {
+        return result;
+      }
+      if (hasMoved(update)) {
+        return Result.REJECTED;
+      }
+      if (attempt >= JgitUtils.MAX_LOCK_FAILURE_CALLS) {
+        return result;
+      }
+      // Jitter, so that competing processes don't retry in lockstep.
+      Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextInt(delay / 2 + 1));
+      delay = Math.min(delay * 2, MAX_BACKOFF_MS);
+    }
+  }
+
+  /**
+   * Moves several refs together in one {@link BatchRefUpdate}, which should
+   * be made while holding all of their locks. Ref databases that support it
+   * apply the batch atomically. Otherwise, if any of the commands fails, the
+   * ones that went through are rolled back, so that the refs either all move
+   * or all stay where they were.
+   * @return whether all the refs were moved. If not, the commands' results
+   *     tell why.
+   */
+  boolean updateAll(List<ReceiveCommand> commands, RevWalk walk, PersonIdent ident,
+      String message) throws IOException {
+    BatchRefUpdate batch = getRepository().getRefDatabase().newBatchUpdate();
+    batch.setRefLogIdent(ident);
+    batch.setRefLogMessage(message, false);
+    batch.addCommand(commands);
+    batch.execute(walk, NullProgressMonitor.INSTANCE);
+
+    List<ReceiveCommand> applied = new ArrayList<>();
+    for (ReceiveCommand command : commands) {
+      if (command.getResult() == ReceiveCommand.Result.OK) {
+        applied.add(command);
+      }
+    }
+    if (applied.size() == commands.size()) {
+      return true;
+    }
+    for (ReceiveCommand command : applied) {
+      rollBack(command);
+    }
+    return false;
+  }
+
+  /**
+   * Puts the ref of an applied command back where it was, unless it has been
+   * moved on since.
+   */
+  private void rollBack(ReceiveCommand command) throws IOException {
+    RefUpdate undo = getRepository().updateRef(command.getRefName());
+    undo.setExpectedOldObjectId(command.getNewId());
+    undo.setForceUpdate(true);
+    Result result;
+    if (ObjectId.zeroId().equals(command.getOldId())) {
+      result = undo.delete();
+    } else {
+      undo.setNewObjectId(command.getOldId());
+      result = undo.update();
+    }
+    if (result != Result.FORCED && result != Result.NO_CHANGE) {
+      throw new IOException("Failed to roll back " + command.getRefName() + ": " + result);
+    }
+  }
+
+  /**
+   * Whether the ref no longer has the value that the update expects.
+   */
+  private boolean hasMoved(RefUpdate update) throws IOException {
+    ObjectId expected = update.getExpectedOldObjectId();
+    if (expected == null) {
+      return false;
+    }
+    Ref current = getRepository().getRef(update.getName());
+    ObjectId currentId = (current != null) ? current.getObjectId() : ObjectId.zeroId();
+    return !expected.equals(currentId);
+  }
+
+  /**
+   * Gets the repository. It is still around, since callers get the
+   * coordinator through it.
+   */
+  private Repository getRepository() throws IOException {
+    Repository repository = repo.get();
+    if (repository == null) {
+      throw new IOException("The repository is no longer in use");
+    }
+    return repository;
+  }
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Google and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Scott McMaster - initial implementation
+ *******************************************************************************/
+package com.google.appraise.eclipse.core.client.git;
+
+import com.google.appraise.eclipse.core.client.data.Review;
+import com.google.appraise.eclipse.core.client.data.User;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * A compact, read-only view of a {@link Review} for listings. It keeps the
+ * first line of the description as a summary, plus where to find the full
+ * review record in its note blob, so the full description is only loaded when
+ * a review is actually opened. The requester, reviewer and ref strings repeat
+ * heavily across reviews, so they are interned.
+ */
+public class ReviewHeader {
+  private static final String[] NO_REVIEWERS = new String[0];
+
+  private final ObjectId hash;
+  private final long timestamp;
+  private final String requester;
+  private final String[] reviewers;
+  private final String reviewRef;
+  private final String targetRef;
+  private final String summary;
+  private final ObjectId noteBlobId;
+  private final int recordOffset;
+
+  public ReviewHeader(ObjectId hash, long timestamp, String requester, String[] reviewers,
+      String reviewRef, String targetRef, String summary, ObjectId noteBlobId,
+      int recordOffset) {
+    this.hash = hash;
+    this.timestamp = timestamp;
+    this.requester = intern(requester);
+    if (reviewers == null || reviewers.length == 0) {
+      this.reviewers = NO_REVIEWERS;
+    } else {
+      this.reviewers = new String[reviewers.length];
+      for (int i = 0; i < reviewers.length; i++) {
+        this.reviewers[i] = intern(reviewers[i]);
+      }
+    }
+    this.reviewRef = intern(reviewRef);
+    this.targetRef = intern(targetRef);
+    this.summary = summary;
+    this.noteBlobId = noteBlobId;
+    this.recordOffset = recordOffset;
+  }
+
+  /**
+   * Creates a header for the given review, summarizing its description.
+   */
+  public static ReviewHeader of(ObjectId hash, Review review, ObjectId noteBlobId,
+      int recordOffset) {
+    return new ReviewHeader(hash, review.getTimestamp(), review.getRequester(),
+        review.getReviewers(), review.getReviewRef(), review.getTargetRef(),
+        summarize(review.getDescription()), noteBlobId, recordOffset);
+  }
+
+  /**
+   * The review commit hash.
+   */
+  public ObjectId getHash() {
+    return hash;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public String getRequester() {
+    return requester;
+  }
+
+  public String[] getReviewers() {
+    return reviewers.clone();
+  }
+
+  public String getReviewRef() {
+    return reviewRef;
+  }
+
+  public String getTargetRef() {
+    return targetRef;
+  }
+
+  /**
+   * The first line of the review's description.
+   */
+  public String getSummary() {
+    return summary;
+  }
+
+  /**
+   * The note blob the review was read from.
+   */
+  public ObjectId getNoteBlobId() {
+    return noteBlobId;
+  }
+
+  /**
+   * The byte offset of the latest review record within the note blob.
+   */
+  public int getRecordOffset() {
+    return recordOffset;
+  }
+
+  /**
+   * Creates a {@link Review} from this header, with the summary standing in
+   * for the description.
+   */
+  public Review toReview() {
+    Review review = new Review();
+    review.setTimestamp(timestamp);
+    review.setRequester(requester);
+    review.setReviewers(getReviewers());
+    review.setReviewRef(reviewRef);
+    review.setTargetRef(targetRef);
+    review.setDescription(summary);
+    return review;
+  }
+
+  /**
+   * Gets the reviewers in a comma-delimited format, the way
+   * {@link Review#getReviewersString} does.
+   */
+  public String getReviewersString() {
+    StringBuilder sb = new StringBuilder();
+    for (String reviewer : reviewers) {
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(reviewer);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Checks whether the given user is one of the reviewers.
+   */
+  public boolean hasReviewer(User user) {
+    for (String reviewer : reviewers) {
+      if (user.matches(reviewer)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the first line of the given description.
+   */
+  public static String summarize(String description) {
+    if (description == null) {
+      return null;
+    }
+    int newline = description.indexOf('\n');
+    return (newline >= 0) ? description.substring(0, newline).trim() : description.trim();
+  }
+
+  private static String intern(String value) {
+    return (value != null) ? value.intern() : null;
+  }
+}
@@ -0,0 +1,401 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Google and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Scott McMaster - initial implementation
+ *******************************************************************************/
+package com.google.appraise.eclipse.core.client.git;
+
+import com.google.appraise.eclipse.core.client.data.Review;
+import com.google.appraise.eclipse.core.client.data.ReviewPage;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.AbstractTreeIterator;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
+
+/**
+ * An index of the reviews in a repository, built from the notes on the reviews
+ * ref. The index remembers the notes commit it was built from, and when the ref
+ * moves it diffs the old and new notes trees and only re-parses the notes whose
+ * blobs changed.
+ *
+ * <p>The index is persisted with {@link ReviewIndexFile}, so after a restart it
+ * starts from the last notes commit it saw rather than from nothing. Reviews are
+ * indexed as {@link ReviewHeader}s, which only carry the first line of their
+ * description; the full review record is read from its note blob on demand.
+ *
+ * <p>Pages of the listing come from a timestamp ordering of the headers,
+ * which is only built once someone pages past the first page. Until then, a
+ * first page is picked out with a bounded heap, without sorting everything.
+ */
+class ReviewIndex {
+  private static final Logger logger = Logger.getLogger(ReviewIndex.class.getName());
+
+  /**
+   * Orders reviews newest first, breaking ties by hash. This is also the
+   * order that listing cursors follow.
+   */
+  private static final Comparator<ReviewHeader> NEWEST_FIRST = new Comparator<ReviewHeader>() {
+    @Override
+    public int compare(ReviewHeader first, ReviewHeader second) {
+      int result = Long.compare(second.getTimestamp(), first.getTimestamp());
+      return (result != 0) ? result : first.getHash().compareTo(second.getHash());
+    }
+  };
+
+  /**
+   * The indexes, one per repository.
+   */
+  private static final Map<Repository, ReviewIndex> indexes = new WeakHashMap<>();
+
+  /**
+   * The notes commit the index currently reflects, or null if it is empty.
+   */
+  private ObjectId notesCommitId;
+
+  /**
+   * The indexed reviews by review commit hash, in the same order that the
+   * notes are listed.
+   */
+  private final Map<ObjectId, ReviewHeader> entries = new TreeMap<>();
+
+  /**
+   * The headers newest first, or null if the ordering has not been needed yet.
+   */
+  private TreeSet<ReviewHeader> byTimestamp;
+
+  /**
+   * The on-disk copy of the index, or null if the repository has no git dir.
+   */
+  private final ReviewIndexFile indexFile;
+
+  private ReviewIndex(ReviewIndexFile indexFile) {
+    this.indexFile = indexFile;
+  }
+
+  /**
+   * Gets the index for the given repository, loading it from disk the first
+   * time it is asked for.
+   */
+  static ReviewIndex forRepository(Repository repo) {
+    synchronized (indexes) {
+      ReviewIndex index = indexes.get(repo);
+      if (index == null) {
+        index = new ReviewIndex(
+            (repo.getDirectory() != null) ? new ReviewIndexFile(repo) : null);
+        index.load();
+        indexes.put(repo, index);
+      }
+      return index;
+    }
+  }
+
+  /**
+   * Loads the persisted index, if there is a usable one. The loaded state is
+   * checked against the notes ref on the next {@link #update}. A file that
+   * can not be read is ignored, and the index is rebuilt from the notes.
+   */
+  private void load() {
+    if (indexFile == null) {
+      return;
+    }
+    try {
+      notesCommitId = indexFile.read(entries);
+    } catch (IOException | RuntimeException e) {
+      logger.warning("Ignoring unreadable review index: " + e.getMessage());
+      notesCommitId = null;
+    }
+    if (notesCommitId == null) {
+      clearEntries();
+    }
+  }
+
+  /**
+   * Writes the index out so that it survives a restart. Failures only cost
+   * a rebuild later, so they are logged and otherwise ignored.
+   */
+  private void save() {
+    if (indexFile == null) {
+      return;
+    }
+    try {
+      if (notesCommitId == null) {
+        indexFile.delete();
+      } else {
+        indexFile.write(notesCommitId, entries.values());
+      }
+    } catch (IOException e) {
+      logger.warning("Failed to save the review index: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Brings the index up to date with the given notes commit.
+   * @param newNotesCommitId The current notes commit, or null if the notes ref
+   *     does not exist.
+   * @param decoder Decodes the notes that changed.
+   */
+  synchronized void update(Repository repo, ObjectId newNotesCommitId,
+      ParallelNoteDecoder decoder) throws IOException {
+    if (newNotesCommitId == null) {
+      if (notesCommitId != null) {
+        clearEntries();
+        notesCommitId = null;
+        save();
+      }
+    } else if (!newNotesCommitId.equals(notesCommitId)) {
+      try {
+        applyChanges(repo, notesCommitId, newNotesCommitId, decoder);
+      } catch (MissingObjectException e) {
+        // The commit we were built from is gone (e.g. the notes ref was rewritten
+        // and garbage collected), so start over.
+        logger.info("Rebuilding the review index: " + e.getMessage());
+        clearEntries();
+        applyChanges(repo, null, newNotesCommitId, decoder);
+      }
+      notesCommitId = newNotesCommitId.copy();
+      save();
+    }
+  }
+
+  /**
+   * Gets all the indexed reviews by commit hash, as summary-only reviews.
+   */
+  synchronized Map<String, Review> getReviews() {
+    Map<String, Review> reviews = new LinkedHashMap<>();
+    for (ReviewHeader header : entries.values()) {
+      reviews.put(header.getHash().name(), header.toReview());
+    }
+    return reviews;
+  }
+
+  /**
+   * Gets the header for the given review, or null if it is not indexed.
+   */
+  synchronized ReviewHeader getHeader(ObjectId reviewCommitId) {
+    return entries.get(reviewCommitId);
+  }
+
+  /**
+   * Gets a page of the indexed reviews, newest first.
+   * @param limit The most reviews to return, or 0 or less for all of them.
+   * @param cursor Where the page starts, from a previous page or
+   *     {@link ReviewPage#cursorAfter}, or null for the first page.
+   */
+  synchronized ReviewPage<ReviewHeader> getPage(int limit, String cursor) {
+    if (limit <= 0) {
+      limit = Integer.MAX_VALUE;
+    }
+    Iterator<ReviewHeader> headers;
+    if (cursor != null) {
+      headers = getOrdering().tailSet(parseCursor(cursor), false).iterator();
+    } else if (byTimestamp != null) {
+      headers = byTimestamp.iterator();
+    } else {
+      headers = selectNewest(limit).iterator();
+    }
+
+    List<ReviewHeader> reviews = new ArrayList<>();
+    while (headers.hasNext() && reviews.size() < limit) {
+      reviews.add(headers.next());
+    }
+    String nextCursor = null;
+    if (!reviews.isEmpty() && headers.hasNext()) {
+      ReviewHeader last = reviews.get(reviews.size() - 1);
+      nextCursor = ReviewPage.cursorAfter(last.getHash().name(), last.getTimestamp());
+    }
+    return new ReviewPage<>(reviews, nextCursor);
+  }
+
+  /**
+   * Parses a listing cursor into a header that sorts where the cursor points.
+   */
+  private static ReviewHeader parseCursor(String cursor) {
+    int colon = cursor.indexOf(':');
+    String hash = (colon >= 0) ? cursor.substring(colon + 1) : "";
+    if (!ObjectId.isId(hash)) {
+      throw new IllegalArgumentException("Invalid review listing cursor: " + cursor);
+    }
+    try {
+      return new ReviewHeader(ObjectId.fromString(hash), Long.parseLong(cursor.substring(0, colon)),
+          null, null, null, null, null, null, 0);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid review listing cursor: " + cursor, e);
+    }
+  }
+
+  /**
+   * Picks out the newest headers with a bounded heap, plus one more so that
+   * the caller can tell whether there is a next page. This is O(n log k),
+   * rather than sorting all the entries.
+   */
+  private List<ReviewHeader> selectNewest(int limit) {
+    int k = (limit < entries.size()) ? limit + 1 : entries.size();
+    // The heap's head is the oldest of the newest k.
+    PriorityQueue<ReviewHeader> heap =
+        new PriorityQueue<>(Math.max(1, k), Collections.reverseOrder(NEWEST_FIRST));
+    for (ReviewHeader header : entries.values()) {
+      heap.add(header);
+      if (heap.size() > k) {
+        heap.poll();
+      }
+    }
+    List<ReviewHeader> newest = new ArrayList<>(heap);
+    Collections.sort(newest, NEWEST_FIRST);
+    return newest;
+  }
+
+  /**
+   * Gets the timestamp ordering of the headers, building it if needed. Once
+   * built, it is kept up to date as entries change.
+   */
+  private TreeSet<ReviewHeader> getOrdering() {
+    if (byTimestamp == null) {
+      byTimestamp = new TreeSet<>(NEWEST_FIRST);
+      byTimestamp.addAll(entries.values());
+    }
+    return byTimestamp;
+  }
+
+  private void putEntry(ReviewHeader header) {
+    ReviewHeader old = entries.put(header.getHash(), header);
+    if (byTimestamp != null) {
+      if (old != null) {
+        byTimestamp.remove(old);
+      }
+      byTimestamp.add(header);
+    }
+  }
+
+  private void removeEntry(ObjectId reviewCommitId) {
+    ReviewHeader old = entries.remove(reviewCommitId);
+    if (byTimestamp != null && old != null) {
+      byTimestamp.remove(old);
+    }
+  }
+
+  private void clearEntries() {
+    entries.clear();
+    byTimestamp = null;
+  }
+
+  /**
+   * Diffs the trees of the two given notes commits and re-parses the notes
+   * whose blobs were added or changed.
+   */
+  private void applyChanges(Repository repo, ObjectId oldCommitId, ObjectId newCommitId,
+      ParallelNoteDecoder decoder) throws IOException {
+    List<ObjectId> removed = new ArrayList<>();
+    Map<ObjectId, ObjectId> changed = new LinkedHashMap<>();
+
+    try (RevWalk revWalk = new RevWalk(repo);
+        TreeWalk treeWalk = new TreeWalk(revWalk.getObjectReader())) {
+      treeWalk.setRecursive(true);
+      treeWalk.setFilter(TreeFilter.ANY_DIFF);
+      treeWalk.addTree(createTreeIterator(revWalk, oldCommitId));
+      treeWalk.addTree(createTreeIterator(revWalk, newCommitId));
+      while (treeWalk.next()) {
+        // Notes may be stored in fanout subtrees, so the path minus the slashes
+        // is the annotated commit hash.
+        String reviewHash = treeWalk.getPathString().replace("/", "");
+        if (!ObjectId.isId(reviewHash)) {
+          continue;
+        }
+        ObjectId reviewCommitId = ObjectId.fromString(reviewHash);
+        if (treeWalk.getFileMode(1) == FileMode.MISSING) {
+          removed.add(reviewCommitId);
+        } else {
+          changed.put(reviewCommitId, treeWalk.getObjectId(1));
+        }
+      }
+
+      // A note that moved between fanout levels shows up as both a removal and
+      // an addition, so the removals go first.
+      for (ObjectId reviewCommitId : removed) {
+        removeEntry(reviewCommitId);
+      }
+
+      List<Map.Entry<ObjectId, ObjectId>> toDecode = new ArrayList<>();
+      for (Map.Entry<ObjectId, ObjectId> change : changed.entrySet()) {
+        ReviewHeader existing = entries.get(change.getKey());
+        if (existing == null || !existing.getNoteBlobId().equals(change.getValue())) {
+          toDecode.add(change);
+        }
+      }
+
+      for (Map.Entry<ObjectId, ReviewHeader> decoded :
+          decoder.decode(repo, toDecode).entrySet()) {
+        if (decoded.getValue() != null) {
+          putEntry(decoded.getValue());
+        } else {
+          removeEntry(decoded.getKey());
+        }
+      }
+    }
+  }
+
+  /**
+   * Builds the header for the given note blob, using the latest review record
+   * in it. Returns null if there is no parseable review.
+   */
+  static ReviewHeader parseHeader(ObjectId reviewCommitId, ObjectId blobId, ObjectLoader loader)
+      throws IOException {
+    final Review[] latest = new Review[1];
+    final int[] latestOffset = new int[1];
+    NoteRecordReader.forEachLine(loader, new NoteRecordReader.LineVisitor() {
+      @Override
+      void visit(byte[] data, int start, int end, int offset) {
+        Review anotherOne = NoteRecordReader.parseRecord(data, start, end, Review.class);
+        if (latest[0] == null
+            || (anotherOne != null && anotherOne.getTimestamp() > latest[0].getTimestamp())) {
+          latest[0] = anotherOne;
+          latestOffset[0] = offset;
+        }
+      }
+    });
+    if (latest[0] == null) {
+      return null;
+    }
+    return ReviewHeader.of(reviewCommitId, latest[0], blobId, latestOffset[0]);
+  }
+
+  /**
+   * Creates a tree iterator over the tree of the given notes commit, or an
+   * empty one if there is no commit.
+   */
+  private AbstractTreeIterator createTreeIterator(RevWalk revWalk, ObjectId commitId)
+      throws IOException {
+    if (commitId == null) {
+      return new EmptyTreeIterator();
+    }
+    CanonicalTreeParser parser = new CanonicalTreeParser();
+    parser.reset(revWalk.getObjectReader(), revWalk.parseCommit(commitId).getTree());
+    return parser;
+  }
+}
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Google and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Scott McMaster - initial implementation
+ *******************************************************************************/
+package com.google.appraise.eclipse.core.client.git;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Reads and writes the on-disk copy of a {@link ReviewIndex}, which lives in
+ * the repository's git dir so that the first listing after a restart does not
+ * need to scan all the notes.
+ *
+ * <p>The file is a header (magic, format version and the reviews notes commit
+ * id it reflects) followed by one record per review: the review and note blob
+ * ids, the timestamp, requester, reviewers, refs, the one-line summary of the
+ * description, and the offset of the latest review record within the note blob.
+ */
+class ReviewIndexFile {
+  /**
+   * Marks the file as an Appraise review index ("ARIX").
+   */
+  private static final int MAGIC = 0x41524958;
+
+  /**
+   * Bumped whenever the record layout changes. Files of other versions are
+   * ignored and the index is rebuilt.
+   */
+  private static final int VERSION = 1;
+
+  /**
+   * The index file, relative to the git dir.
+   */
+  private static final String INDEX_PATH = "appraise/review-index";
+
+  /**
+   * The smallest possible record: two object ids, the timestamp, the four
+   * string lengths, the reviewer count and the record offset.
+   */
+  private static final int MIN_RECORD_SIZE = 20 + 20 + 8 + 4 * 4 + 4 + 4;
+
+  private final File file;
+
+  ReviewIndexFile(Repository repo) {
+    this.file = new File(repo.getDirectory(), INDEX_PATH);
+  }
+
+  /**
+   * Reads the index file into the given entries, returning the notes commit
+   * id it reflects, or null if there is no usable file. Counts and lengths
+   * are checked against the size of the file, so a truncated or corrupt file
+   * fails with an {@link IOException} rather than a huge allocation.
+   */
+  ObjectId read(Map<ObjectId, ReviewHeader> entries) throws IOException {
+    long size = file.length();
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        return null;
+      }
+      ObjectId notesCommitId = readObjectId(in);
+      int count = checkCount(in.readInt(), size / MIN_RECORD_SIZE);
+      for (int i = 0; i < count; i++) {
+        ObjectId reviewCommitId = readObjectId(in);
+        ObjectId blobId = readObjectId(in);
+        long timestamp = in.readLong();
+        String requester = readString(in, size);
+        String[] reviewers = new String[checkCount(in.readInt(), size / 4)];
+        for (int j = 0; j < reviewers.length; j++) {
+          reviewers[j] = readString(in, size);
+        }
+        String reviewRef = readString(in, size);
+        String targetRef = readString(in, size);
+        String summary = readString(in, size);
+        int recordOffset = in.readInt();
+        entries.put(reviewCommitId, new ReviewHeader(reviewCommitId, timestamp, requester,
+            reviewers, reviewRef, targetRef, summary, blobId, recordOffset));
+      }
+      return notesCommitId;
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Writes the given entries out as the index for the given notes commit.
+   * The file is replaced atomically so that readers never see a partial index.
+   */
+  void write(ObjectId notesCommitId, Collection<ReviewHeader> entries) throws IOException {
+    File dir = file.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create " + dir);
+    }
+    File tmp = File.createTempFile("review-index", ".tmp", dir);
+    try {
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        notesCommitId.copyRawTo(out);
+        out.writeInt(entries.size());
+        for (ReviewHeader header : entries) {
+          header.getHash().copyRawTo(out);
+          header.getNoteBlobId().copyRawTo(out);
+          out.writeLong(header.getTimestamp());
+          writeString(out, header.getRequester());
+          String[] reviewers = header.getReviewers();
+          out.writeInt(reviewers.length);
+          for (String reviewer : reviewers) {
+            writeString(out, reviewer);
+          }
+          writeString(out, header.getReviewRef());
+          writeString(out, header.getTargetRef());
+          writeString(out, header.getSummary());
+          out.writeInt(header.getRecordOffset());
+        }
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      if (tmp.exists()) {
+        tmp.delete();
+      }
+    }
+  }
+
+  /**
+   * Deletes the index file, if there is one.
+   */
+  void delete() {
+    if (file.exists() && !file.delete()) {
+      file.deleteOnExit();
+    }
+  }
+
+  private static ObjectId readObjectId(DataInputStream in) throws IOException {
+    byte[] raw = new byte[20];
+    in.readFully(raw);
+    return ObjectId.fromRaw(raw);
+  }
+
+  /**
+   * Checks a count read from the file against the most the file could hold.
+   */
+  private static int checkCount(int count, long max) throws IOException {
+    if (count < 0 || count > max) {
+      throw new IOException("Corrupt review index: bad count " + count);
+    }
+    return count;
+  }
+
+  /**
+   * Reads a length-prefixed UTF-8 string, where a length of -1 means null.
+   * @param size The size of the file, which no string can be longer than.
+   */
+  private static String readString(DataInputStream in, long size) throws IOException {
+    int length = in.readInt();
+    if (length == -1) {
+      return null;
+    }
+    byte[] data = new byte[checkCount(length, size)];
+    in.readFully(data);
+    return new String(data, "UTF-8");
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] data = value.getBytes("UTF-8");
+    out.writeInt(data.length);
+    out.write(data);
+  }
+}
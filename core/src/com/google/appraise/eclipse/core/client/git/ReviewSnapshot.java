@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Google and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Scott McMaster - initial implementation
+ *******************************************************************************/
+package com.google.appraise.eclipse.core.client.git;
+
+import com.google.appraise.eclipse.core.client.data.Review;
+import com.google.appraise.eclipse.core.client.data.ReviewComment;
+
+import org.eclipse.jgit.diff.DiffEntry;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A review along with everything its task shows, all read from the same
+ * state of the notes refs and branches.
+ */
+public class ReviewSnapshot {
+  private final Review review;
+  private final Map<String, ReviewComment> comments;
+  private final List<DiffEntry> diffs;
+  private final Map<DiffEntry, String> diffTexts;
+  private final boolean submitted;
+
+  public ReviewSnapshot(Review review, Map<String, ReviewComment> comments, List<DiffEntry> diffs,
+      Map<DiffEntry, String> diffTexts, boolean submitted) {
+    this.review = review;
+    this.comments = comments;
+    this.diffs = diffs;
+    this.diffTexts = diffTexts;
+    this.submitted = submitted;
+  }
+
+  public Review getReview() {
+    return review;
+  }
+
+  /**
+   * The review's comments, by comment id.
+   */
+  public Map<String, ReviewComment> getComments() {
+    return comments;
+  }
+
+  /**
+   * The diffs under review.
+   */
+  public List<DiffEntry> getDiffs() {
+    return diffs;
+  }
+
+  /**
+   * The formatted text of each of the diffs.
+   */
+  public Map<DiffEntry, String> getDiffTexts() {
+    return diffTexts;
+  }
+
+  /**
+   * Whether the review commit has been merged into the target ref.
+   */
+  public boolean isSubmitted() {
+    return submitted;
+  }
+}
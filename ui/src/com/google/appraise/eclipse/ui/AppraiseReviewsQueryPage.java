@@ -30,6 +30,7 @@ public class AppraiseReviewsQueryPage extends AbstractRepositoryQueryPage2 {
   private Button requesterCheckbox;
   private Button reviewerCheckbox;
   private Text reviewCommitPrefixText;
+  private Text limitText;
 
   public AppraiseReviewsQueryPage(TaskRepository repository, IRepositoryQuery query) {
     super("reviews", repository, query);
@@ -49,6 +50,10 @@ public class AppraiseReviewsQueryPage extends AbstractRepositoryQueryPage2 {
     Label reviewCommitPrefixLabel = new Label(composite, SWT.NONE);
     reviewCommitPrefixLabel.setText("Review Commit Hash (prefix):");
     reviewCommitPrefixText = new Text(composite, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+
+    Label limitLabel = new Label(composite, SWT.NONE);
+    limitLabel.setText("Maximum Reviews (newest first, blank for all):");
+    limitText = new Text(composite, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
     composite.pack();
   }
 
@@ -68,6 +73,9 @@ public class AppraiseReviewsQueryPage extends AbstractRepositoryQueryPage2 {
     String reviewCommitPrefix = query.getAttribute(AppraiseConnectorPlugin.QUERY_REVIEW_COMMIT_PREFIX);
     reviewCommitPrefixText.setText(reviewCommitPrefix);
 
+    String limit = query.getAttribute(AppraiseConnectorPlugin.QUERY_LIMIT);
+    limitText.setText(limit != null ? limit : "");
+
     return true;
   }
 
@@ -81,6 +89,7 @@ public class AppraiseReviewsQueryPage extends AbstractRepositoryQueryPage2 {
     query.setAttribute(
         AppraiseConnectorPlugin.QUERY_REVIEWER, Boolean.toString(reviewerCheckbox.getSelection()));
     query.setAttribute(AppraiseConnectorPlugin.QUERY_REVIEW_COMMIT_PREFIX, reviewCommitPrefixText.getText());
+    query.setAttribute(AppraiseConnectorPlugin.QUERY_LIMIT, limitText.getText().trim());
   }
 
   @Override
@@ -13,6 +13,7 @@ package com.google.appraise.eclipse.ui;
 import com.google.appraise.eclipse.core.AppraiseConnectorPlugin;
 import com.google.appraise.eclipse.core.AppraisePluginReviewClient;
 import com.google.appraise.eclipse.core.AppraisePluginUtils;
+import com.google.appraise.eclipse.core.AppraiseRepositoryConnector;
 import com.google.appraise.eclipse.core.AppraiseTaskMapper;
 import com.google.appraise.eclipse.core.client.data.ReviewComment;
 import com.google.appraise.eclipse.core.client.git.GitClientException;
@@ -22,14 +23,21 @@ import org.eclipse.core.filesystem.IFileStore;
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IWorkspaceRoot;
 import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Path;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jface.operation.IRunnableWithProgress;
 import org.eclipse.jface.util.OpenStrategy;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.mylyn.tasks.core.IRepositoryListener;
 import org.eclipse.mylyn.tasks.core.ITask;
 import org.eclipse.mylyn.tasks.core.TaskRepository;
+import org.eclipse.mylyn.tasks.core.TaskRepositoryAdapter;
 import org.eclipse.mylyn.tasks.ui.TasksUi;
+import org.eclipse.ui.IWorkbench;
+import org.eclipse.ui.IWorkbenchListener;
 import org.eclipse.ui.IWorkbenchPage;
 import org.eclipse.ui.IWorkbenchWindow;
 import org.eclipse.ui.PartInitException;
@@ -42,6 +50,11 @@ import org.osgi.framework.BundleContext;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * The activator lifecycle plugin for the Appraise UI extensions, plus a couple
@@ -57,19 +70,91 @@ public class AppraiseUiPlugin extends AbstractUIPlugin {
   // The shared instance
   private static AppraiseUiPlugin plugin;
 
+  /**
+   * Whether new comments are held back until {@link #publishPendingComments}
+   * rather than written right away.
+   */
+  private boolean holdingComments;
+
+  /**
+   * The comments held back for publishing, by task repository URL and then by
+   * review commit hash.
+   */
+  private final Map<String, Map<String, List<ReviewComment>>> pendingComments =
+      new LinkedHashMap<>();
+
   /**
    * The constructor
    */
   public AppraiseUiPlugin() {}
 
+  /**
+   * Drops the connector's cached review client when its task repository is
+   * removed or reconfigured.
+   */
+  private final IRepositoryListener repositoryListener = new TaskRepositoryAdapter() {
+    @Override
+    public void repositoryRemoved(TaskRepository repository) {
+      invalidateReviewClient(repository.getRepositoryUrl());
+    }
+
+    @Override
+    public void repositorySettingsChanged(TaskRepository repository) {
+      invalidateReviewClient(repository.getRepositoryUrl());
+    }
+
+    @Override
+    public void repositoryUrlChanged(TaskRepository repository, String oldUrl) {
+      invalidateReviewClient(oldUrl);
+    }
+  };
+
+  /**
+   * Publishes the held comments when the workbench shuts down, since they
+   * only live in memory.
+   */
+  private final IWorkbenchListener workbenchListener = new IWorkbenchListener() {
+    @Override
+    public boolean preShutdown(IWorkbench workbench, boolean forced) {
+      // A job might not get to run before the workbench is gone, so the comments are
+      // written while a progress dialog keeps the UI responsive.
+      final Map<String, Map<String, List<ReviewComment>>> comments = takePendingComments();
+      if (comments.isEmpty()) {
+        return true;
+      }
+      try {
+        workbench.getProgressService().run(true, false, new IRunnableWithProgress() {
+          @Override
+          public void run(IProgressMonitor monitor) {
+            writePendingComments(comments, monitor);
+          }
+        });
+      } catch (InvocationTargetException | InterruptedException e) {
+        AppraiseUiPlugin.logError("Error publishing pending comments", e);
+      }
+      return true;
+    }
+
+    @Override
+    public void postShutdown(IWorkbench workbench) {}
+  };
+
   @Override
   public void start(BundleContext context) throws Exception {
     super.start(context);
     plugin = this;
+    TasksUi.getRepositoryManager().addListener(repositoryListener);
+    if (PlatformUI.isWorkbenchRunning()) {
+      PlatformUI.getWorkbench().addWorkbenchListener(workbenchListener);
+    }
   }
 
   @Override
   public void stop(BundleContext context) throws Exception {
+    TasksUi.getRepositoryManager().removeListener(repositoryListener);
+    if (PlatformUI.isWorkbenchRunning()) {
+      PlatformUI.getWorkbench().removeWorkbenchListener(workbenchListener);
+    }
     plugin = null;
     super.stop(context);
   }
@@ -83,6 +168,24 @@ public class AppraiseUiPlugin extends AbstractUIPlugin {
     return plugin;
   }
 
+  /**
+   * Gets the connector's long-lived review client for the given task
+   * repository.
+   */
+  static AppraisePluginReviewClient getReviewClient(TaskRepository taskRepository)
+      throws GitClientException {
+    return getConnector().getReviewClient(taskRepository);
+  }
+
+  private static void invalidateReviewClient(String repositoryUrl) {
+    getConnector().invalidateReviewClient(repositoryUrl);
+  }
+
+  private static AppraiseRepositoryConnector getConnector() {
+    return (AppraiseRepositoryConnector) TasksUi.getRepositoryConnector(
+        AppraiseConnectorPlugin.CONNECTOR_KIND);
+  }
+
   /**
    * Helper method to log errors as {@link IStatus}.
    */
@@ -101,6 +204,8 @@ public class AppraiseUiPlugin extends AbstractUIPlugin {
   /**
    * Helper method to write a comment into the active task. Does nothing if
    * there is no active task, or the active task is not a Appraise review.
+   * The comment is written in the background by a {@link CommentWriteJob},
+   * and shows as a pending marker until then.
    */
   public void writeCommentForActiveTask(ReviewComment comment) {
     ITask activeTask = TasksUi.getTaskActivityManager().getActiveTask();
@@ -111,16 +216,161 @@ public class AppraiseUiPlugin extends AbstractUIPlugin {
       return;
     }
 
+    if (holdComment(activeTask, comment)) {
+      return;
+    }
+
     TaskRepository taskRepository = TasksUi.getRepositoryManager().getRepository(
         AppraiseConnectorPlugin.CONNECTOR_KIND, activeTask.getRepositoryUrl());
+    CommentWriteJob.schedule(taskRepository, activeTask, comment);
+  }
+
+  /**
+   * Holds back the given comment for publishing, if comments are being held.
+   * The comment is timestamped now, so it keeps its place among the others.
+   */
+  private synchronized boolean holdComment(ITask task, ReviewComment comment) {
+    if (!holdingComments) {
+      return false;
+    }
+    comment.setTimestamp(System.currentTimeMillis() / 1000);
+    Map<String, List<ReviewComment>> repositoryComments =
+        pendingComments.get(task.getRepositoryUrl());
+    if (repositoryComments == null) {
+      repositoryComments = new LinkedHashMap<>();
+      pendingComments.put(task.getRepositoryUrl(), repositoryComments);
+    }
+    List<ReviewComment> taskComments = repositoryComments.get(task.getTaskId());
+    if (taskComments == null) {
+      taskComments = new ArrayList<>();
+      repositoryComments.put(task.getTaskId(), taskComments);
+    }
+    taskComments.add(comment);
+    return true;
+  }
+
+  /**
+   * Whether new comments are held back until they are published.
+   */
+  public synchronized boolean isHoldingComments() {
+    return holdingComments;
+  }
+
+  /**
+   * Sets whether new comments are held back until
+   * {@link #publishPendingComments} writes them all out at once, rather than
+   * each being written and pushed on its own.
+   */
+  public synchronized void setHoldingComments(boolean holdingComments) {
+    this.holdingComments = holdingComments;
+  }
+
+  /**
+   * Returns how many comments are held back for publishing.
+   */
+  public synchronized int getPendingCommentCount() {
+    int count = 0;
+    for (Map<String, List<ReviewComment>> repositoryComments : pendingComments.values()) {
+      for (List<ReviewComment> taskComments : repositoryComments.values()) {
+        count += taskComments.size();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Writes out all the held comments in a background job, with one notes
+   * commit and push per task repository. Comments that fail to be written
+   * are held again.
+   */
+  public void publishPendingComments() {
+    final Map<String, Map<String, List<ReviewComment>>> comments = takePendingComments();
+    if (comments.isEmpty()) {
+      return;
+    }
+    Job job = new Job("Publishing Appraise review comments") {
+      @Override
+      protected IStatus run(IProgressMonitor monitor) {
+        writePendingComments(comments, monitor);
+        return Status.OK_STATUS;
+      }
+    };
+    job.schedule();
+  }
+
+  /**
+   * Removes and returns all the held comments.
+   */
+  private synchronized Map<String, Map<String, List<ReviewComment>>> takePendingComments() {
+    Map<String, Map<String, List<ReviewComment>>> comments = new LinkedHashMap<>(pendingComments);
+    pendingComments.clear();
+    return comments;
+  }
+
+  /**
+   * Writes the given held comments, by task repository URL, and holds again
+   * the ones that fail to be written. This does not hold the plugin's lock,
+   * so that comments can still be held meanwhile.
+   */
+  private void writePendingComments(
+      Map<String, Map<String, List<ReviewComment>>> comments, IProgressMonitor monitor) {
+    monitor.beginTask("Publishing review comments", comments.size());
+    try {
+      for (Map.Entry<String, Map<String, List<ReviewComment>>> entry : comments.entrySet()) {
+        if (!writeRepositoryComments(entry.getKey(), entry.getValue())) {
+          restorePendingComments(entry.getKey(), entry.getValue());
+        }
+        monitor.worked(1);
+      }
+    } finally {
+      monitor.done();
+    }
+  }
+
+  private boolean writeRepositoryComments(
+      String repositoryUrl, Map<String, List<ReviewComment>> repositoryComments) {
+    TaskRepository taskRepository = TasksUi.getRepositoryManager().getRepository(
+        AppraiseConnectorPlugin.CONNECTOR_KIND, repositoryUrl);
+    if (taskRepository == null) {
+      AppraiseUiPlugin.logError("Repository not found for pending comments: " + repositoryUrl);
+      return false;
+    }
     try {
-      AppraisePluginReviewClient client = new AppraisePluginReviewClient(taskRepository);
-      client.writeComment(activeTask.getTaskId(), comment);
+      return getReviewClient(taskRepository).writeComments(repositoryComments);
     } catch (GitClientException e) {
-      AppraiseUiPlugin.logError("Error writing comment for " + activeTask.getTaskId(), e);
+      AppraiseUiPlugin.logError("Error writing pending comments for " + repositoryUrl, e);
+      return false;
     }
   }
 
+  /**
+   * Holds again comments that failed to be written, ahead of any comments
+   * that were held for the same reviews in the meantime.
+   */
+  private synchronized void restorePendingComments(
+      String repositoryUrl, Map<String, List<ReviewComment>> failed) {
+    Map<String, List<ReviewComment>> restored = new LinkedHashMap<>(failed);
+    Map<String, List<ReviewComment>> held = pendingComments.get(repositoryUrl);
+    if (held != null) {
+      for (Map.Entry<String, List<ReviewComment>> entry : held.entrySet()) {
+        List<ReviewComment> taskComments = restored.get(entry.getKey());
+        if (taskComments == null) {
+          restored.put(entry.getKey(), entry.getValue());
+        } else {
+          taskComments.addAll(entry.getValue());
+        }
+      }
+    }
+    pendingComments.put(repositoryUrl, restored);
+  }
+
+  /**
+   * Drops all the held comments without writing them.
+   */
+  public synchronized void discardPendingComments() {
+    pendingComments.clear();
+  }
+
   /**
    * Returns the current Git branch, which in the detached head state (should
    * be true in the review workflow) will be the commit id.
@@ -19,6 +19,9 @@ import org.eclipse.ui.views.markers.MarkerItem;
 public class Author extends MarkerField {
   @Override
   public String getValue(MarkerItem item) {
+    if (item.getAttributeValue(ReviewMarkerAttributes.REVIEW_PENDING_MARKER_ATTRIBUTE, false)) {
+      return "Publishing...";
+    }
     return item.getAttributeValue(ReviewMarkerAttributes.REVIEW_AUTHOR_MARKER_ATTRIBUTE, "Unknown");
   }
 }
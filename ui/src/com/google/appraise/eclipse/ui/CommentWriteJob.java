@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Google and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *     Scott McMaster - initial implementation
+ *******************************************************************************/
+package com.google.appraise.eclipse.ui;
+
+import com.google.appraise.eclipse.core.AppraiseConnectorPlugin;
+import com.google.appraise.eclipse.core.AppraisePluginReviewClient;
+import com.google.appraise.eclipse.core.AppraisePluginUtils;
+import com.google.appraise.eclipse.core.client.data.ReviewComment;
+import com.google.appraise.eclipse.core.client.data.ReviewCommentLocation;
+import com.google.appraise.eclipse.core.client.git.GitClientException;
+
+import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceRunnable;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.mylyn.tasks.core.AbstractRepositoryConnector;
+import org.eclipse.mylyn.tasks.core.ITask;
+import org.eclipse.mylyn.tasks.core.TaskRepository;
+import org.eclipse.mylyn.tasks.ui.TasksUi;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes a new review comment in the background, so that the UI does not
+ * wait on the notes sync, commit and push. The comment shows up as a pending
+ * review marker as soon as the job starts. Once the comment is written, the
+ * marker gets the comment's id and author and the task is synchronized, so
+ * its editor shows the comment too. If the write fails, the marker is
+ * removed.
+ */
+class CommentWriteJob extends Job {
+  private final TaskRepository taskRepository;
+  private final ITask task;
+  private final ReviewComment comment;
+
+  /**
+   * The marker standing in for the comment until it is written, or null if
+   * the comment's file is not in the workspace.
+   */
+  private IMarker pendingMarker;
+
+  private CommentWriteJob(TaskRepository taskRepository, ITask task, ReviewComment comment) {
+    super("Writing Appraise review comment");
+    this.taskRepository = taskRepository;
+    this.task = task;
+    this.comment = comment;
+  }
+
+  /**
+   * Schedules the job that marks the given comment as pending on the given
+   * review task, and writes it.
+   */
+  static void schedule(TaskRepository taskRepository, ITask task, ReviewComment comment) {
+    new CommentWriteJob(taskRepository, task, comment).schedule();
+  }
+
+  @Override
+  protected IStatus run(IProgressMonitor monitor) {
+    pendingMarker = createPendingMarker(monitor);
+    boolean written = false;
+    try {
+      AppraisePluginReviewClient client = AppraiseUiPlugin.getReviewClient(taskRepository);
+      String commentId = client.writeComment(task.getTaskId(), comment);
+      written = commentId != null;
+      if (written) {
+        reconcileMarker(commentId);
+      }
+    } catch (GitClientException e) {
+      AppraiseUiPlugin.logError("Error writing comment for " + task.getTaskId(), e);
+    } finally {
+      if (!written) {
+        deletePendingMarker();
+      }
+    }
+    if (written) {
+      AbstractRepositoryConnector connector =
+          TasksUi.getRepositoryConnector(AppraiseConnectorPlugin.CONNECTOR_KIND);
+      TasksUi.getTaskJobFactory()
+          .createSynchronizeTasksJob(connector, taskRepository, Collections.singleton(task))
+          .schedule();
+    }
+    return Status.OK_STATUS;
+  }
+
+  /**
+   * Adds a marker for the comment that is about to be written, the same way
+   * {@code ReviewMarkerManager} marks written comments.
+   */
+  private IMarker createPendingMarker(IProgressMonitor monitor) {
+    IProject project = AppraisePluginUtils.getProjectForRepository(taskRepository);
+    if (project == null) {
+      return null;
+    }
+
+    IResource resource = project;
+    int lineNumber = 0;
+    ReviewCommentLocation location = comment.getLocation();
+    if (location != null && location.getPath() != null) {
+      resource = project.getFile(location.getPath());
+      if (!resource.exists()) {
+        return null;
+      }
+      if (location.getRange() != null) {
+        lineNumber = location.getRange().getStartLine();
+      }
+    }
+
+    final Map<String, Object> attributes = new HashMap<>();
+    attributes.put(IMarker.MESSAGE, comment.getDescription());
+    attributes.put(IMarker.TRANSIENT, true);
+    if (lineNumber > 0) {
+      attributes.put(IMarker.LINE_NUMBER, lineNumber);
+    }
+    attributes.put(IMarker.USER_EDITABLE, false);
+    attributes.put(ReviewMarkerAttributes.REVIEW_DATETIME_MARKER_ATTRIBUTE,
+        Long.toString(System.currentTimeMillis()));
+    attributes.put(ReviewMarkerAttributes.REVIEW_RESOLVED_MARKER_ATTRIBUTE,
+        Boolean.TRUE.equals(comment.getResolved()) ? "Yes" : "No");
+    attributes.put(ReviewMarkerAttributes.REVIEW_PENDING_MARKER_ATTRIBUTE, true);
+    attributes.put(ReviewMarkerAttributes.REVIEW_TASK_ID_MARKER_ATTRIBUTE, task.getTaskId());
+    // Markers can not hold null values, such as a missing description.
+    attributes.values().removeAll(Collections.singleton(null));
+
+    // The marker is created and filled in as one workspace change, so that it is never seen
+    // without its attributes.
+    final IResource markedResource = resource;
+    final IMarker[] marker = new IMarker[1];
+    IWorkspace workspace = project.getWorkspace();
+    try {
+      workspace.run(new IWorkspaceRunnable() {
+        @Override
+        public void run(IProgressMonitor workspaceMonitor) throws CoreException {
+          marker[0] = markedResource.createMarker(AppraiseUiPlugin.REVIEW_TASK_MARKER_ID);
+          marker[0].setAttributes(attributes);
+        }
+      }, workspace.getRuleFactory().markerRule(resource), 0, monitor);
+      return marker[0];
+    } catch (CoreException e) {
+      AppraiseUiPlugin.logError("Failed to create pending marker for " + task.getTaskId(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Turns the pending marker into the marker of the written comment, which
+   * the writer has given an id, author and timestamp.
+   */
+  private void reconcileMarker(String commentId) {
+    if (pendingMarker == null || !pendingMarker.exists()) {
+      return;
+    }
+    try {
+      pendingMarker.setAttributes(
+          new String[] {
+              ReviewMarkerAttributes.REVIEW_PENDING_MARKER_ATTRIBUTE,
+              ReviewMarkerAttributes.REVIEW_AUTHOR_MARKER_ATTRIBUTE,
+              ReviewMarkerAttributes.REVIEW_DATETIME_MARKER_ATTRIBUTE,
+              ReviewMarkerAttributes.REVIEW_ID_MARKER_ATTRIBUTE},
+          new Object[] {
+              null,
+              comment.getAuthor(),
+              Long.toString(comment.getTimestamp() * 1000),
+              commentId});
+    } catch (CoreException e) {
+      AppraiseUiPlugin.logError("Failed to update marker for " + task.getTaskId(), e);
+    }
+  }
+
+  private void deletePendingMarker() {
+    if (pendingMarker == null) {
+      return;
+    }
+    try {
+      pendingMarker.delete();
+    } catch (CoreException e) {
+      AppraiseUiPlugin.logError("Failed to delete pending marker for " + task.getTaskId(), e);
+    }
+  }
+}
@@ -23,4 +23,10 @@ public class ReviewMarkerAttributes {
   public static final String REVIEW_DATETIME_MARKER_ATTRIBUTE = "DateTime";
   
   public static final String REVIEW_RESOLVED_MARKER_ATTRIBUTE = "Resolved";
+
+  // The review task that the marked comment belongs to.
+  public static final String REVIEW_TASK_ID_MARKER_ATTRIBUTE = "TaskId";
+
+  // Set on the marker of a comment that is still being written.
+  public static final String REVIEW_PENDING_MARKER_ATTRIBUTE = "Pending";
 }
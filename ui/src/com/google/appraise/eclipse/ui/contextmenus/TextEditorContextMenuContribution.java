@@ -67,6 +67,40 @@ public class TextEditorContextMenuContribution extends ContributionItem {
     fileLineCommentMenuItem.setText("New &Line Comment...");
     fileLineCommentMenuItem.addSelectionListener(createFileLineCommentSelectionListener());
 
+    new MenuItem(submenu, SWT.SEPARATOR);
+
+    final AppraiseUiPlugin uiPlugin = AppraiseUiPlugin.getDefault();
+    MenuItem holdCommentsMenuItem = new MenuItem(submenu, SWT.CHECK);
+    holdCommentsMenuItem.setText("&Hold Comments for Publishing");
+    holdCommentsMenuItem.setSelection(uiPlugin.isHoldingComments());
+    holdCommentsMenuItem.addSelectionListener(new SelectionAdapter() {
+      @Override
+      public void widgetSelected(SelectionEvent e) {
+        uiPlugin.setHoldingComments(((MenuItem) e.widget).getSelection());
+      }
+    });
+
+    int pendingCount = uiPlugin.getPendingCommentCount();
+    MenuItem publishMenuItem = new MenuItem(submenu, SWT.PUSH);
+    publishMenuItem.setText("&Publish " + pendingCount + " Pending Comment(s)");
+    publishMenuItem.setEnabled(pendingCount > 0);
+    publishMenuItem.addSelectionListener(new SelectionAdapter() {
+      @Override
+      public void widgetSelected(SelectionEvent e) {
+        uiPlugin.publishPendingComments();
+      }
+    });
+
+    MenuItem discardMenuItem = new MenuItem(submenu, SWT.PUSH);
+    discardMenuItem.setText("&Discard Pending Comments");
+    discardMenuItem.setEnabled(pendingCount > 0);
+    discardMenuItem.addSelectionListener(new SelectionAdapter() {
+      @Override
+      public void widgetSelected(SelectionEvent e) {
+        uiPlugin.discardPendingComments();
+      }
+    });
+
     // Can only add Appraise comments if there is an active Appraise review task.
     ITask activeTask = TasksUi.getTaskActivityManager().getActiveTask();
     submenuItem.setEnabled(activeTask != null
@@ -16,8 +16,8 @@ import com.google.appraise.eclipse.core.AppraiseReviewTaskSchema;
 import com.google.appraise.eclipse.ui.AppraiseUiPlugin;
 
 import org.eclipse.core.resources.IProject;
-import org.eclipse.core.resources.IResource;
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.RefNotFoundException;
@@ -32,11 +32,25 @@ import org.eclipse.mylyn.tasks.ui.TasksUi;
  * Handles task activiation and deactiviation for Appraise tasks.
  */
 public class AppraiseReviewTaskActivationListener extends TaskActivationAdapter {
+  /**
+   * How long after a review task is deactivated its markers are removed. If
+   * another review in the same project is activated in the meantime, its
+   * markers are reconciled with the ones already there instead.
+   */
+  private static final long MARKER_REMOVAL_DELAY_MS = 5000;
+
   /**
    * Hold on to the name of the branch we will go to when a task is deactivated.
    */
   private String previousBranch;
 
+  /**
+   * The pending removal of the last deactivated task's markers, if any, and
+   * the project it applies to.
+   */
+  private Job markerRemoval;
+  private IProject markerRemovalProject;
+
   @Override
   public void taskActivated(ITask task) {
     if (task == null) {
@@ -61,6 +75,12 @@ public class AppraiseReviewTaskActivationListener extends TaskActivationAdapter
       promptSwitchToReviewBranch(taskRepository, reviewBranch);
     }
 
+    IProject project = AppraisePluginUtils.getProjectForRepository(taskRepository);
+    if (markerRemoval != null && markerRemovalProject.equals(project)) {
+      markerRemoval.cancel();
+    }
+    markerRemoval = null;
+    markerRemovalProject = null;
     new ReviewMarkerManager(taskRepository, taskData).createMarkers();
   }
 
@@ -107,12 +127,10 @@ public class AppraiseReviewTaskActivationListener extends TaskActivationAdapter
       }
     }
 
-    int depth = IResource.DEPTH_INFINITE;
     IProject project = AppraisePluginUtils.getProjectForRepository(taskRepository);
-    try {
-      project.deleteMarkers(AppraiseUiPlugin.REVIEW_TASK_MARKER_ID, true, depth);
-    } catch (CoreException e) {
-      AppraiseUiPlugin.logError("Error deleting review markers for task " + task.getTaskId(), e);
+    if (project != null) {
+      markerRemoval = ReviewMarkerManager.scheduleRemoveMarkers(project, MARKER_REMOVAL_DELAY_MS);
+      markerRemovalProject = project;
     }
   }
 
@@ -18,17 +18,42 @@ import com.google.appraise.eclipse.ui.ReviewMarkerAttributes;
 import org.eclipse.core.resources.IMarker;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.WorkspaceJob;
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.ISchedulingRule;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.core.runtime.jobs.MultiRule;
 import org.eclipse.mylyn.tasks.core.TaskRepository;
 import org.eclipse.mylyn.tasks.core.data.TaskAttribute;
 import org.eclipse.mylyn.tasks.core.data.TaskData;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
- * Creates markers for a given task.
+ * Creates markers for a given task, and keeps them in line with its comments.
  */
 public class ReviewMarkerManager {
+  /**
+   * Keeps the marker jobs from running at the same time, since the
+   * workspace's marker rule may not be a rule at all.
+   */
+  private static final ISchedulingRule MARKER_JOBS_RULE = new ISchedulingRule() {
+    @Override
+    public boolean contains(ISchedulingRule rule) {
+      return rule == this;
+    }
+
+    @Override
+    public boolean isConflicting(ISchedulingRule rule) {
+      return rule == this;
+    }
+  };
 
   private final TaskData taskData;
   private final TaskRepository taskRepository;
@@ -39,59 +64,157 @@ public class ReviewMarkerManager {
   }
 
   /**
-   * Creates all the markers for this task data instance.
+   * Brings the review markers in the task's project in line with the task's
+   * comments, in a background job. Markers are matched to comments by
+   * comment id: comments without a marker get one, markers whose comment
+   * changed are updated, and markers whose comment is gone, or that belong
+   * to another task, are removed. Markers of unchanged comments are left
+   * alone, as are the markers of comments that are still being written. All
+   * this happens in one workspace operation, so that the workspace sends out
+   * a single resource delta for it.
    */
   public void createMarkers() {
-    List<TaskAttribute> comments =
+    final IProject project = AppraisePluginUtils.getProjectForRepository(taskRepository);
+    if (project == null) {
+      return;
+    }
+    final List<TaskAttribute> comments =
         taskData.getAttributeMapper().getAttributesByType(taskData, TaskAttribute.TYPE_COMMENT);
+    WorkspaceJob job = new WorkspaceJob("Updating Appraise review markers") {
+      @Override
+      public IStatus runInWorkspace(IProgressMonitor monitor) throws CoreException {
+        monitor.beginTask("Updating review markers", comments.size());
+        try {
+          reconcileMarkers(project, comments, monitor);
+        } finally {
+          monitor.done();
+        }
+        return monitor.isCanceled() ? Status.CANCEL_STATUS : Status.OK_STATUS;
+      }
+    };
+    schedule(job, project, 0);
+  }
+
+  /**
+   * Schedules a job that removes all the review markers in the given
+   * project after the given delay, unless it is canceled first.
+   */
+  public static Job scheduleRemoveMarkers(final IProject project, long delayMillis) {
+    WorkspaceJob job = new WorkspaceJob("Removing Appraise review markers") {
+      @Override
+      public IStatus runInWorkspace(IProgressMonitor monitor) throws CoreException {
+        project.deleteMarkers(AppraiseUiPlugin.REVIEW_TASK_MARKER_ID, true,
+            IResource.DEPTH_INFINITE);
+        return Status.OK_STATUS;
+      }
+    };
+    schedule(job, project, delayMillis);
+    return job;
+  }
+
+  private static void schedule(WorkspaceJob job, IProject project, long delayMillis) {
+    job.setRule(MultiRule.combine(
+        project.getWorkspace().getRuleFactory().markerRule(project), MARKER_JOBS_RULE));
+    job.setSystem(true);
+    job.schedule(delayMillis);
+  }
+
+  private void reconcileMarkers(IProject project, List<TaskAttribute> comments,
+      IProgressMonitor monitor) throws CoreException {
+    String taskId = taskData.getTaskId();
+    Map<String, IMarker> existing = new HashMap<>();
+    for (IMarker marker : project.findMarkers(
+        AppraiseUiPlugin.REVIEW_TASK_MARKER_ID, true, IResource.DEPTH_INFINITE)) {
+      if (marker.getAttribute(ReviewMarkerAttributes.REVIEW_PENDING_MARKER_ATTRIBUTE, false)) {
+        continue;
+      }
+      String commentId =
+          marker.getAttribute(ReviewMarkerAttributes.REVIEW_ID_MARKER_ATTRIBUTE, null);
+      String markerTaskId =
+          marker.getAttribute(ReviewMarkerAttributes.REVIEW_TASK_ID_MARKER_ATTRIBUTE, null);
+      if (commentId == null || !taskId.equals(markerTaskId)
+          || existing.put(commentId, marker) != null) {
+        // Not one of this task's comments, or a duplicate.
+        marker.delete();
+      }
+    }
+
     for (TaskAttribute commentAttr : comments) {
-      markComment(taskRepository, commentAttr, taskData.getTaskId());
+      if (monitor.isCanceled()) {
+        return;
+      }
+      markComment(project, commentAttr, taskId, existing.remove(getCommentId(commentAttr)));
+      monitor.worked(1);
+    }
+
+    for (IMarker marker : existing.values()) {
+      marker.delete();
     }
   }
 
   /**
-   * Adds a marker for the given comment, assuming it has a location attached.
+   * Adds a marker for the given comment, assuming it has a location attached,
+   * or updates the comment's existing marker if it has changed. The
+   * attributes are set all at once.
+   * @param marker The comment's existing marker, or null.
    */
   private void markComment(
-      TaskRepository taskRepository, TaskAttribute commentAttr, String taskId) {
-    IProject project = AppraisePluginUtils.getProjectForRepository(taskRepository);
-
+      IProject project, TaskAttribute commentAttr, String taskId, IMarker marker) {
     String filePath = getFilePath(commentAttr);
     IResource resource = project;
     if (filePath != null) {
       resource = project.getFile(filePath);
       if (resource == null || !resource.exists()) {
-        return;
+        resource = null;
       }
     }
 
     try {
-      IMarker marker = resource.createMarker(AppraiseUiPlugin.REVIEW_TASK_MARKER_ID);
-      marker.setAttribute(IMarker.MESSAGE, getMessage(commentAttr));
-      marker.setAttribute(IMarker.TRANSIENT, true);
+      if (marker != null && !marker.getResource().equals(resource)) {
+        marker.delete();
+        marker = null;
+      }
+      if (resource == null) {
+        return;
+      }
+
+      Map<String, Object> attributes = new HashMap<>();
+      attributes.put(IMarker.MESSAGE, getMessage(commentAttr));
+      attributes.put(IMarker.TRANSIENT, true);
       if (filePath != null) {
-        marker.setAttribute(IMarker.LINE_NUMBER, getLineNumber(commentAttr));
+        attributes.put(IMarker.LINE_NUMBER, getLineNumber(commentAttr));
       }
-      marker.setAttribute(IMarker.USER_EDITABLE, false);
+      attributes.put(IMarker.USER_EDITABLE, false);
       TaskAttribute authorAttribute = commentAttr.getMappedAttribute(TaskAttribute.COMMENT_AUTHOR);
       if (authorAttribute != null) {
-        marker.setAttribute(
+        attributes.put(
             ReviewMarkerAttributes.REVIEW_AUTHOR_MARKER_ATTRIBUTE, authorAttribute.getValue());
       }
-      marker.setAttribute(
+      attributes.put(
           ReviewMarkerAttributes.REVIEW_DATETIME_MARKER_ATTRIBUTE,
           commentAttr.getMappedAttribute(TaskAttribute.COMMENT_DATE).getValue());
-      marker.setAttribute(
+      attributes.put(
           ReviewMarkerAttributes.REVIEW_ID_MARKER_ATTRIBUTE, getCommentId(commentAttr));
-      marker.setAttribute(
+      attributes.put(
           ReviewMarkerAttributes.REVIEW_RESOLVED_MARKER_ATTRIBUTE,
           getResolvedDisplayText(commentAttr));
-      marker.setAttribute("TaskId", taskId);
+      attributes.put(ReviewMarkerAttributes.REVIEW_TASK_ID_MARKER_ATTRIBUTE, taskId);
+      // Markers store a null attribute by dropping it, so null values would never compare
+      // equal to the marker's attributes.
+      attributes.values().removeAll(Collections.singleton(null));
+
+      if (marker == null) {
+        marker = resource.createMarker(AppraiseUiPlugin.REVIEW_TASK_MARKER_ID);
+      } else if (attributes.equals(marker.getAttributes())) {
+        // The comment hasn't changed, so leave its marker be.
+        return;
+      }
+      marker.setAttributes(attributes);
     } catch (CoreException e) {
-      AppraiseUiPlugin.logError("Failed to create marker at " + filePath, e);
+      AppraiseUiPlugin.logError("Failed to mark comment at " + filePath, e);
     }
   }
-  
+
   private String getFilePath(TaskAttribute commentAttr) {
     final TaskAttribute locationFileAttr =
         commentAttr.getAttribute(AppraiseReviewTaskSchema.COMMENT_LOCATION_FILE);